@@ -0,0 +1,55 @@
+package file_handling;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Open input files that may be compressed. The format is detected from the
+ * first bytes of the file, not from its name: gzip files (including
+ * multi-member files, e.g. from pigz or concatenated .gz parts) are
+ * decompressed on a background thread while the caller reads; other files
+ * are read as they are.
+ *
+ * @author Fábio Ferreira
+ * @author Rui Frazão
+ */
+public final class CompressedInput {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private CompressedInput() {
+    }
+
+    /**
+     * Open a file for reading, decompressing it if needed
+     *
+     * @param filename
+     * @return Stream of the (decompressed) content
+     * @throws IOException
+     */
+    public static InputStream open(String filename) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(filename), BUFFER_SIZE);
+        byte[] magic = new byte[4];
+        int length = 0, n;
+
+        in.mark(magic.length);
+        while (length < magic.length && (n = in.read(magic, length, magic.length - length)) > 0) {
+            length += n;
+        }
+        in.reset();
+
+        if (length >= 2 && (magic[0] & 0xFF) == 0x1F && (magic[1] & 0xFF) == 0x8B) {
+            return new ReadAheadInputStream(new GZIPInputStream(in, BUFFER_SIZE));
+        }
+        if (length == 4 && (magic[0] & 0xFF) == 0x28 && (magic[1] & 0xFF) == 0xB5
+                && (magic[2] & 0xFF) == 0x2F && (magic[3] & 0xFF) == 0xFD) {
+            in.close();
+            throw new IOException(filename + " is zstd compressed; decompress it first (zstd -d) or recompress it with gzip");
+        }
+        return in;
+    }
+
+}
@@ -3,6 +3,7 @@ package file_handling;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -40,4 +41,12 @@ public class FileHandler {
         }
     }
 
+    public void write(String filepath, byte[] bytes) {
+        try (FileOutputStream out = new FileOutputStream(filepath, true)) {
+            out.write(bytes);
+        } catch (IOException e) {
+            System.err.println("IOException - " + e.getMessage());
+        }
+    }
+
 }
@@ -8,6 +8,11 @@ package file_handling;
 /**
  * Memory Management
  *
+ * Stages that buffer data (e.g. the indexer blocks) account for the
+ * estimated bytes of their own structures and flush at a byte budget taken
+ * from here, so flush points do not depend on when the garbage collector
+ * ran.
+ *
  * @author Fábio Ferreira
  * @author Rui Frazão
  */
@@ -29,16 +34,35 @@ public class MemoryManager {
         return getTotalMemory()-getFreeMemory();
     }
 
+    /**
+     * Maximum heap the JVM may use (-Xmx)
+     * 
+     * @return Bytes
+     */
+    public long getMaxMemory() {
+        return Runtime.getRuntime().maxMemory();
+    }
+
     /**
      * Calculates memory usage using the Runtime Java API
      * 
-     * @return Used Memory Percentage;
+     * @return Used Memory Percentage of the maximum heap;
      */
     public float getMemoryUsage() {
         Runtime rt = Runtime.getRuntime();
         totalMemory = rt.totalMemory();
         freeMemory = rt.freeMemory();
         usedMemory = totalMemory - freeMemory;
-        return (float) usedMemory / totalMemory * 100;
+        return (float) usedMemory / rt.maxMemory() * 100;
+    }
+
+    /**
+     * Byte budget for a buffering stage
+     * 
+     * @param percentage - Percentage of the maximum heap
+     * @return Bytes
+     */
+    public long getBudget(int percentage) {
+        return getMaxMemory() / 100 * percentage;
     }
 }
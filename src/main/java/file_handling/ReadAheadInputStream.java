@@ -0,0 +1,163 @@
+package file_handling;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Input stream that reads its source on a background thread into a bounded
+ * queue of chunks, so the work of the source (e.g. decompression) overlaps
+ * with the work of the consumer. The reading thread blocks while the queue
+ * is full.
+ *
+ * @author Fábio Ferreira
+ * @author Rui Frazão
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    public static final int DEFAULT_QUEUED_CHUNKS = 8;
+
+    private static final byte[] END = new byte[0];
+
+    private final InputStream source;
+    private final BlockingQueue<Object> chunks;
+    private final Thread reader;
+    private byte[] chunk = new byte[0];
+    private int position = 0;
+    private boolean closed = false;
+
+    public ReadAheadInputStream(InputStream source) {
+        this(source, DEFAULT_CHUNK_SIZE, DEFAULT_QUEUED_CHUNKS);
+    }
+
+    public ReadAheadInputStream(InputStream source, int chunkSize, int queuedChunks) {
+        this.source = source;
+        this.chunks = new ArrayBlockingQueue<>(Math.max(1, queuedChunks));
+        this.reader = new Thread(() -> readSource(Math.max(1, chunkSize)), "read-ahead");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /**
+     * Background thread: queue full chunks of the source, then END, or the
+     * exception that stopped the reading (a failure of a decompressing
+     * source is queued as an IOException too)
+     *
+     * @param chunkSize
+     */
+    private void readSource(int chunkSize) {
+        try {
+            byte[] buffer = new byte[chunkSize];
+            int length = 0, n;
+            while ((n = source.read(buffer, length, chunkSize - length)) >= 0) {
+                length += n;
+                if (length == chunkSize) {
+                    chunks.put(buffer);
+                    buffer = new byte[chunkSize];
+                    length = 0;
+                }
+            }
+            if (length > 0) {
+                byte[] last = new byte[length];
+                System.arraycopy(buffer, 0, last, 0, length);
+                chunks.put(last);
+            }
+            chunks.put(END);
+        } catch (InterruptedException e) {
+            //closed by the consumer
+        } catch (IOException | RuntimeException e) {
+            try {
+                chunks.put(e instanceof IOException ? e : new IOException(e.toString(), e));
+            } catch (InterruptedException ie) {
+                //closed by the consumer
+            }
+        }
+    }
+
+    /**
+     * Make the next chunk current
+     *
+     * @return false at the end of the source
+     * @throws IOException
+     */
+    private boolean nextChunk() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (chunk == END) {
+            return false;
+        }
+        Object next;
+        try {
+            next = chunks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Read interrupted");
+        }
+        if (next instanceof IOException) {
+            chunk = END;
+            throw new IOException("Error reading source: " + ((IOException) next).getMessage(), (IOException) next);
+        }
+        chunk = (byte[]) next;
+        position = 0;
+        return chunk != END;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == chunk.length && !nextChunk()) {
+            return -1;
+        }
+        return chunk[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position == chunk.length && !nextChunk()) {
+            return -1;
+        }
+        int n = Math.min(len, chunk.length - position);
+        System.arraycopy(chunk, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return chunk.length - position;
+    }
+
+    /**
+     * Stop the reading thread and close the source; the source is only closed
+     * once the thread has left it, so no read runs on a closed source
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        boolean interrupted = false;
+        reader.interrupt();
+        while (reader.isAlive()) {
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                interrupted = true;                                             //keep waiting, restore below
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        source.close();
+    }
+
+}
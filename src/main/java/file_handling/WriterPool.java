@@ -0,0 +1,107 @@
+package file_handling;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of buffered writers, one per output file, kept open for the life of
+ * a pipeline stage. Files are opened in append mode; when more than
+ * maxOpenFiles are open the least recently used one is flushed and closed,
+ * and reopened if it is written again.
+ *
+ * @author Fábio Ferreira
+ * @author Rui Frazão
+ */
+public class WriterPool implements Closeable {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_OPEN_FILES = 256;
+
+    private final int bufferSize;
+    private final int maxOpenFiles;
+    private final Map<String, OutputStream> writers = new LinkedHashMap<>(16, 0.75f, true);
+    private final byte[] lineSeparator = System.lineSeparator().getBytes(Charset.defaultCharset());
+
+    public WriterPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_OPEN_FILES);
+    }
+
+    public WriterPool(int bufferSize) {
+        this(bufferSize, DEFAULT_MAX_OPEN_FILES);
+    }
+
+    public WriterPool(int bufferSize, int maxOpenFiles) {
+        this.bufferSize = bufferSize;
+        this.maxOpenFiles = Math.max(1, maxOpenFiles);
+    }
+
+    /**
+     * Append a line to a file
+     *
+     * @param filepath
+     * @param line
+     * @throws IOException
+     */
+    public synchronized void write(String filepath, String line) throws IOException {
+        OutputStream out = getWriter(filepath);
+        out.write(line.getBytes(Charset.defaultCharset()));
+        out.write(lineSeparator);
+    }
+
+    /**
+     * Append bytes to a file
+     *
+     * @param filepath
+     * @param bytes
+     * @throws IOException
+     */
+    public synchronized void write(String filepath, byte[] bytes) throws IOException {
+        getWriter(filepath).write(bytes);
+    }
+
+    private OutputStream getWriter(String filepath) throws IOException {
+        OutputStream out = writers.get(filepath);
+        if (out == null) {
+            out = new BufferedOutputStream(new FileOutputStream(filepath, true), bufferSize);
+            writers.put(filepath, out);
+            if (writers.size() > maxOpenFiles) {
+                Iterator<OutputStream> eldest = writers.values().iterator();
+                eldest.next().close();
+                eldest.remove();
+            }
+        }
+        return out;
+    }
+
+    public synchronized void flush() throws IOException {
+        for (OutputStream out : writers.values()) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (OutputStream out : writers.values()) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        writers.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+}
@@ -0,0 +1,248 @@
+package indexer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * BM25 and BM25F term scores over the document statistics of the index.
+ *
+ * BM25 uses the term frequency in the whole document and the document
+ * length. BM25F combines the term frequency of each field, normalized by the
+ * length of the field and weighted by the field weight, before the
+ * saturation. Scores include the (k1 + 1) factor but not the idf, so the
+ * merger can store the maximum of each term as a pruning bound that does not
+ * depend on the number of documents.
+ *
+ * Over several segments the number of documents and the average lengths are
+ * the ones of the whole collection; the lengths of the scored documents are
+ * read from the statistics of their segment (see forSegment).
+ *
+ * @author Rui Frazão
+ * @author Fábio Ferreira
+ */
+public class Bm25 {
+
+    public static final double DEFAULT_K1 = 1.2, DEFAULT_B = 0.75;
+    public static final double DEFAULT_FIRST_FIELD_WEIGHT = 2.0;              //title of the documents
+
+    private final DocumentStats stats;
+    private final double k1;
+    private final double b;
+    private final double[] fieldWeights;
+    private final int nDocuments;
+    private final double averageLength;
+    private final double[] averageFieldLengths;
+
+    public Bm25(DocumentStats stats) {
+        this(stats, DEFAULT_K1, DEFAULT_B, defaultFieldWeights(stats.getFields()));
+    }
+
+    /**
+     * @param stats
+     * @param k1 - Term frequency saturation
+     * @param b - Length normalization, 0 to 1
+     * @param fieldWeights - Weight of each field for BM25F; missing fields
+     * weigh 1
+     */
+    public Bm25(DocumentStats stats, double k1, double b, double[] fieldWeights) {
+        this(Collections.singletonList(stats), k1, b, fieldWeights);
+    }
+
+    /**
+     * Scorer over the collection statistics of several segments; document
+     * lengths are read from the first segment until forSegment is used
+     *
+     * @param segments - Statistics of each segment, at least one
+     * @param k1
+     * @param b
+     * @param fieldWeights
+     */
+    public Bm25(List<DocumentStats> segments, double k1, double b, double[] fieldWeights) {
+        int fields = 1;
+        long documents = 0, totalLength = 0;
+        for (DocumentStats segment : segments) {
+            fields = Math.max(fields, segment.getFields());
+            documents += segment.getDocumentCount();
+            totalLength += segment.getTotalLength();
+        }
+        this.stats = segments.get(0);
+        this.k1 = k1;
+        this.b = b;
+        this.fieldWeights = new double[fields];
+        Arrays.fill(this.fieldWeights, 1);
+        System.arraycopy(fieldWeights, 0, this.fieldWeights, 0, Math.min(fieldWeights.length, this.fieldWeights.length));
+        this.nDocuments = (int) Math.min(documents, Integer.MAX_VALUE);
+        this.averageLength = documents == 0 ? 0 : (double) totalLength / documents;
+        this.averageFieldLengths = new double[fields];
+        for (int f = 0; f < fields; f++) {
+            long fieldLength = 0;
+            for (DocumentStats segment : segments) {
+                fieldLength += segment.getTotalFieldLength(f);
+            }
+            averageFieldLengths[f] = documents == 0 ? 0 : (double) fieldLength / documents;
+        }
+    }
+
+    private Bm25(Bm25 collection, DocumentStats stats) {
+        this.stats = stats;
+        this.k1 = collection.k1;
+        this.b = collection.b;
+        this.fieldWeights = collection.fieldWeights;
+        this.nDocuments = collection.nDocuments;
+        this.averageLength = collection.averageLength;
+        this.averageFieldLengths = collection.averageFieldLengths;
+    }
+
+    /**
+     * Scorer with the same parameters and collection statistics that reads
+     * the document lengths of a segment
+     *
+     * @param segment
+     * @return Scorer of the documents of the segment
+     */
+    public Bm25 forSegment(DocumentStats segment) {
+        return new Bm25(this, segment);
+    }
+
+    /**
+     * Factor that turns the BM25 upper bounds the merger stored for the
+     * segment of this scorer, computed over the average length of that
+     * segment, into bounds for the collection average length
+     *
+     * @return Factor, at least 1
+     */
+    public double lengthBoundScale() {
+        return boundScale(averageLength, stats.getAverageLength());
+    }
+
+    /**
+     * Factor that turns the BM25F upper bounds of the segment of this scorer
+     * into bounds for the collection average field lengths
+     *
+     * @return Factor, at least 1
+     */
+    public double fieldLengthBoundScale() {
+        double scale = 1;
+        for (int f = 0; f < averageFieldLengths.length; f++) {
+            scale = Math.max(scale, boundScale(averageFieldLengths[f], stats.getAverageFieldLength(f)));
+        }
+        return scale;
+    }
+
+    /**
+     * Factor that turns the BM25F upper bounds of the segment of this scorer,
+     * computed with the default weights of the fields of that segment, into
+     * bounds for the field weights of this scorer; the weighted frequency
+     * grows at most by the largest ratio of the weights and the saturation
+     * grows less than it
+     *
+     * @return Factor, at least 1
+     */
+    public double fieldWeightBoundScale() {
+        double[] indexWeights = defaultFieldWeights(stats.getFields());
+        double scale = 1;
+        for (int f = 0; f < indexWeights.length && f < fieldWeights.length; f++) {
+            scale = Math.max(scale, fieldWeights[f] / indexWeights[f]);
+        }
+        return scale;
+    }
+
+    /**
+     * A shorter average length makes every length normalization larger and
+     * a longer one smaller, by at most their ratio
+     *
+     * @param collectionAverage
+     * @param segmentAverage
+     * @return Scale of the upper bounds
+     */
+    private static double boundScale(double collectionAverage, double segmentAverage) {
+        return segmentAverage > 0 && collectionAverage > segmentAverage ? collectionAverage / segmentAverage : 1;
+    }
+
+    /**
+     * The first field (the title) weighs DEFAULT_FIRST_FIELD_WEIGHT when the
+     * documents have more than one field
+     *
+     * @param fields
+     * @return Field weights
+     */
+    public static double[] defaultFieldWeights(int fields) {
+        double[] weights = new double[fields];
+        Arrays.fill(weights, 1);
+        if (fields > 1) {
+            weights[0] = DEFAULT_FIRST_FIELD_WEIGHT;
+        }
+        return weights;
+    }
+
+    /**
+     * Whether the parameters are the ones the merger used for the term upper
+     * bounds of the lexicon
+     *
+     * @return true if the bounds of the lexicon hold for these scores
+     */
+    public boolean hasDefaultParameters() {
+        return k1 == DEFAULT_K1 && b == DEFAULT_B && Arrays.equals(fieldWeights, defaultFieldWeights(fieldWeights.length));
+    }
+
+    public DocumentStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Number of documents of the collection
+     *
+     * @return Number of documents
+     */
+    public int getDocumentCount() {
+        return nDocuments;
+    }
+
+    /**
+     * Robertson-Sparck Jones idf, kept positive for terms in more than half
+     * of the documents
+     *
+     * @param df
+     * @return idf
+     */
+    public double idf(int df) {
+        return Math.log(1 + (nDocuments - df + 0.5) / (df + 0.5));
+    }
+
+    /**
+     * BM25 score of a term in a document, without the idf
+     *
+     * @param tf - Term frequency in the document
+     * @param docid
+     * @return Score
+     */
+    public double score(int tf, int docid) {
+        if (tf == 0) {
+            return 0;
+        }
+        double norm = averageLength > 0 ? 1 - b + b * stats.getLength(docid) / averageLength : 1;
+        return tf * (k1 + 1) / (tf + k1 * norm);
+    }
+
+    /**
+     * BM25F score of a term in a document, without the idf
+     *
+     * @param fieldFreqs - Term frequency in each field of the document
+     * @param nFields - Number of fields in fieldFreqs
+     * @param docid
+     * @return Score
+     */
+    public double fieldScore(int[] fieldFreqs, int nFields, int docid) {
+        double tf = 0, norm;
+        for (int f = 0; f < nFields && f < fieldWeights.length; f++) {
+            if (fieldFreqs[f] == 0) {
+                continue;
+            }
+            norm = averageFieldLengths[f] > 0 ? 1 - b + b * stats.getFieldLength(docid, f) / averageFieldLengths[f] : 1;
+            tf += fieldWeights[f] * fieldFreqs[f] / norm;
+        }
+        return tf == 0 ? 0 : tf * (k1 + 1) / (tf + k1);
+    }
+
+}
@@ -0,0 +1,235 @@
+package indexer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compressed set of docids in the layout of a Roaring bitmap.
+ *
+ * Docids are split by their 16 high bits into chunks; a chunk with up to
+ * ARRAY_LIMIT docids keeps their 16 low bits in a sorted array (2 bytes per
+ * docid), a denser chunk keeps a bitmap of 65536 bits (8 KB). A lookup is a
+ * binary search over the chunk keys, then over the array or a bit test.
+ * Not thread safe; shared copies must not be changed.
+ *
+ * @author Rui Frazão
+ * @author Fábio Ferreira
+ */
+public class CompressedBitmap {
+
+    private static final int ARRAY_LIMIT = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    private int nChunks = 0;
+    private int[] keys = new int[4];
+    private int[] cardinalities = new int[4];
+    private char[][] arrays = new char[4][];
+    private long[][] bitmaps = new long[4][];
+    private int cardinality = 0;
+
+    public CompressedBitmap() {
+    }
+
+    /**
+     * Copy of a bitmap, which can be changed without changing the original
+     *
+     * @param other
+     */
+    public CompressedBitmap(CompressedBitmap other) {
+        this.nChunks = other.nChunks;
+        this.keys = Arrays.copyOf(other.keys, other.keys.length);
+        this.cardinalities = Arrays.copyOf(other.cardinalities, other.cardinalities.length);
+        this.arrays = new char[other.arrays.length][];
+        this.bitmaps = new long[other.bitmaps.length][];
+        for (int c = 0; c < nChunks; c++) {
+            arrays[c] = other.arrays[c] == null ? null : Arrays.copyOf(other.arrays[c], other.arrays[c].length);
+            bitmaps[c] = other.bitmaps[c] == null ? null : Arrays.copyOf(other.bitmaps[c], BITMAP_WORDS);
+        }
+        this.cardinality = other.cardinality;
+    }
+
+    /**
+     * Add a docid to the set
+     *
+     * @param docid - Not negative
+     * @return false if the docid was already in the set
+     */
+    public boolean add(int docid) {
+        int key = docid >>> 16, chunk = Arrays.binarySearch(keys, 0, nChunks, key);
+        char low = (char) docid;
+        if (chunk < 0) {
+            chunk = insertChunk(-chunk - 1, key);
+        }
+
+        if (bitmaps[chunk] != null) {
+            long bit = 1L << low;
+            if ((bitmaps[chunk][low >>> 6] & bit) != 0) {
+                return false;
+            }
+            bitmaps[chunk][low >>> 6] |= bit;
+        } else {
+            char[] array = arrays[chunk];
+            int n = cardinalities[chunk], position = Arrays.binarySearch(array, 0, n, low);
+            if (position >= 0) {
+                return false;
+            }
+            if (n == ARRAY_LIMIT) {
+                toBitmap(chunk);
+                bitmaps[chunk][low >>> 6] |= 1L << low;
+            } else {
+                position = -position - 1;
+                if (n == array.length) {
+                    array = arrays[chunk] = Arrays.copyOf(array, Math.min(ARRAY_LIMIT, n * 2));
+                }
+                System.arraycopy(array, position, array, position + 1, n - position);
+                array[position] = low;
+            }
+        }
+        cardinalities[chunk]++;
+        cardinality++;
+        return true;
+    }
+
+    /**
+     * Whether a docid is in the set
+     *
+     * @param docid
+     * @return true if it is
+     */
+    public boolean contains(int docid) {
+        int chunk = Arrays.binarySearch(keys, 0, nChunks, docid >>> 16);
+        if (chunk < 0) {
+            return false;
+        }
+        char low = (char) docid;
+        if (bitmaps[chunk] != null) {
+            return (bitmaps[chunk][low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch(arrays[chunk], 0, cardinalities[chunk], low) >= 0;
+    }
+
+    /**
+     * Number of docids in the set
+     *
+     * @return Cardinality
+     */
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /**
+     * Docids of the set in ascending order
+     *
+     * @return docids
+     */
+    public int[] toArray() {
+        int[] docids = new int[cardinality];
+        int n = 0, high;
+        for (int c = 0; c < nChunks; c++) {
+            high = keys[c] << 16;
+            if (bitmaps[c] != null) {
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    for (long word = bitmaps[c][w]; word != 0; word &= word - 1) {
+                        docids[n++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+                    }
+                }
+            } else {
+                for (int i = 0; i < cardinalities[c]; i++) {
+                    docids[n++] = high | arrays[c][i];
+                }
+            }
+        }
+        return docids;
+    }
+
+    private int insertChunk(int position, int key) {
+        if (nChunks == keys.length) {
+            keys = Arrays.copyOf(keys, nChunks * 2);
+            cardinalities = Arrays.copyOf(cardinalities, nChunks * 2);
+            arrays = Arrays.copyOf(arrays, nChunks * 2);
+            bitmaps = Arrays.copyOf(bitmaps, nChunks * 2);
+        }
+        System.arraycopy(keys, position, keys, position + 1, nChunks - position);
+        System.arraycopy(cardinalities, position, cardinalities, position + 1, nChunks - position);
+        System.arraycopy(arrays, position, arrays, position + 1, nChunks - position);
+        System.arraycopy(bitmaps, position, bitmaps, position + 1, nChunks - position);
+        keys[position] = key;
+        cardinalities[position] = 0;
+        arrays[position] = new char[4];
+        bitmaps[position] = null;
+        nChunks++;
+        return position;
+    }
+
+    private void toBitmap(int chunk) {
+        long[] bitmap = new long[BITMAP_WORDS];
+        for (int i = 0; i < cardinalities[chunk]; i++) {
+            bitmap[arrays[chunk][i] >>> 6] |= 1L << arrays[chunk][i];
+        }
+        bitmaps[chunk] = bitmap;
+        arrays[chunk] = null;
+    }
+
+    /**
+     * Write the chunks: their number, then the key and the cardinality of
+     * each chunk followed by its array or its bitmap
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(nChunks);
+        for (int c = 0; c < nChunks; c++) {
+            out.writeShort(keys[c]);
+            out.writeInt(cardinalities[c]);
+            if (bitmaps[c] != null) {
+                for (long word : bitmaps[c]) {
+                    out.writeLong(word);
+                }
+            } else {
+                for (int i = 0; i < cardinalities[c]; i++) {
+                    out.writeChar(arrays[c][i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a bitmap written by write
+     *
+     * @param in
+     * @return Bitmap
+     * @throws IOException
+     */
+    public static CompressedBitmap read(DataInputStream in) throws IOException {
+        CompressedBitmap bitmap = new CompressedBitmap();
+        int n = in.readInt(), key, count;
+        for (int c = 0; c < n; c++) {
+            key = in.readUnsignedShort();
+            count = in.readInt();
+            bitmap.insertChunk(c, key);
+            if (count > ARRAY_LIMIT) {
+                bitmap.bitmaps[c] = new long[BITMAP_WORDS];
+                bitmap.arrays[c] = null;
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    bitmap.bitmaps[c][w] = in.readLong();
+                }
+            } else {
+                bitmap.arrays[c] = new char[Math.max(4, count)];
+                for (int i = 0; i < count; i++) {
+                    bitmap.arrays[c][i] = in.readChar();
+                }
+            }
+            bitmap.cardinalities[c] = count;
+            bitmap.cardinality += count;
+        }
+        return bitmap;
+    }
+
+}
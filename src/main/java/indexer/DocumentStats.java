@@ -0,0 +1,217 @@
+package indexer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Memory-mapped per document statistics created by DocumentStatsWriter.
+ *
+ * The file starts with the number of fields, the smallest and the largest
+ * docid, the number of documents, the total length and the total length of
+ * each field. It is followed by one fixed size entry per docid (smallest to
+ * largest docid): the document length in terms, its cosine norm and the
+ * length of each field. Docids that were not indexed have an empty entry; a
+ * document without terms (e.g. only stopwords) is stored with the norm
+ * EMPTY_DOCUMENT_NORM, so it is still found in the segment.
+ *
+ * When the documents cover too little of their docid range (e.g. a segment
+ * of updated documents, or a merge of segments far apart) the file is
+ * sparse, flagged by SPARSE in the number of fields: the entries are only
+ * those of the documents, after the ascending array of their docids, and a
+ * docid is found by binary search. Its size follows the number of
+ * documents instead of the docid range.
+ *
+ * @author Rui Frazão
+ * @author Fábio Ferreira
+ */
+public class DocumentStats implements Closeable {
+
+    public static final String PART_EXTENSION = ".dst";
+    static final float EMPTY_DOCUMENT_NORM = -1;
+    static final int SPARSE = 1 << 16;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int fields;
+    private final int minDocid;
+    private final int maxDocid;
+    private final int nDocuments;
+    private final long totalLength;
+    private final long[] fieldLengths;
+    private final boolean sparse;
+    private final int docidsStart;
+    private final int entriesStart;
+    private final int entrySize;
+
+    public DocumentStats(File statsFile) throws IOException {
+        this.file = new RandomAccessFile(statsFile, "r");
+        FileChannel channel = file.getChannel();
+        this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+        this.fields = buffer.getInt(0) & (SPARSE - 1);
+        this.sparse = (buffer.getInt(0) & SPARSE) != 0;
+        this.minDocid = buffer.getInt(4);
+        this.maxDocid = buffer.getInt(8);
+        this.nDocuments = buffer.getInt(12);
+        this.totalLength = buffer.getLong(16);
+        this.fieldLengths = new long[fields];
+        for (int f = 0; f < fields; f++) {
+            fieldLengths[f] = buffer.getLong(24 + 8 * f);
+        }
+        this.docidsStart = headerSize(fields);
+        this.entriesStart = docidsStart + (sparse ? 4 * nDocuments : 0);
+        this.entrySize = entrySize(fields);
+    }
+
+    static int headerSize(int fields) {
+        return 24 + 8 * fields;
+    }
+
+    static int entrySize(int fields) {
+        return 8 + 4 * fields;
+    }
+
+    /**
+     * Norm as it is stored in an entry
+     *
+     * @param norm
+     * @return The norm, or EMPTY_DOCUMENT_NORM for a document without terms
+     */
+    static float storedNorm(double norm) {
+        return norm > 0 ? (float) norm : EMPTY_DOCUMENT_NORM;
+    }
+
+    public int getFields() {
+        return fields;
+    }
+
+    public int getDocumentCount() {
+        return nDocuments;
+    }
+
+    public int getMinDocid() {
+        return minDocid;
+    }
+
+    public int getMaxDocid() {
+        return maxDocid;
+    }
+
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    public long getTotalFieldLength(int field) {
+        return field < fields ? fieldLengths[field] : 0;
+    }
+
+    public double getAverageLength() {
+        return nDocuments == 0 ? 0 : (double) totalLength / nDocuments;
+    }
+
+    public double getAverageFieldLength(int field) {
+        return nDocuments == 0 || field >= fields ? 0 : (double) fieldLengths[field] / nDocuments;
+    }
+
+    /**
+     * Index of the entry of a docid
+     *
+     * @param docid
+     * @return Entry; -1 if the file has none for the docid
+     */
+    private int slot(int docid) {
+        if (docid < minDocid || docid > maxDocid) {
+            return -1;
+        }
+        if (!sparse) {
+            return docid - minDocid;
+        }
+        int low = 0, high = nDocuments - 1, middle, value;
+        while (low <= high) {
+            middle = (low + high) >>> 1;
+            value = buffer.getInt(docidsStart + 4 * middle);
+            if (value < docid) {
+                low = middle + 1;
+            } else if (value > docid) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Whether a document was indexed in the segment, even without terms
+     *
+     * @param docid
+     * @return true if the docid has an entry
+     */
+    public boolean contains(int docid) {
+        int slot = slot(docid);
+        return slot >= 0 && buffer.getFloat(entriesStart + slot * entrySize + 4) != 0;
+    }
+
+    /**
+     * Docids of the documents of the segment
+     *
+     * @return docids in ascending order
+     */
+    public int[] getDocids() {
+        int[] docids = new int[nDocuments];
+        int n = 0;
+        if (sparse) {
+            for (; n < nDocuments; n++) {
+                docids[n] = buffer.getInt(docidsStart + 4 * n);
+            }
+            return docids;
+        }
+        for (int docid = minDocid; docid <= maxDocid && n < nDocuments; docid++) {
+            if (contains(docid)) {
+                docids[n++] = docid;
+            }
+        }
+        return n == nDocuments ? docids : Arrays.copyOf(docids, n);
+    }
+
+    /**
+     * Number of terms of a document
+     *
+     * @param docid
+     * @return Length; 0 if the document was not indexed
+     */
+    public int getLength(int docid) {
+        int slot = slot(docid);
+        return slot < 0 ? 0 : buffer.getInt(entriesStart + slot * entrySize);
+    }
+
+    /**
+     * Cosine norm of the TF weights of a document
+     *
+     * @param docid
+     * @return Norm; 0 if the document was not indexed
+     */
+    public float getNorm(int docid) {
+        int slot = slot(docid);
+        return slot < 0 ? 0 : Math.max(0, buffer.getFloat(entriesStart + slot * entrySize + 4));
+    }
+
+    public int getFieldLength(int docid, int field) {
+        int slot = slot(docid);
+        if (slot < 0 || field >= fields) {
+            return 0;
+        }
+        return buffer.getInt(entriesStart + slot * entrySize + 8 + 4 * field);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+}
@@ -0,0 +1,233 @@
+package indexer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the per document statistics read by DocumentStats.
+ *
+ * The indexer appends one record per document to each block (docid, number
+ * of fields, length of each field and cosine norm) and flushes them next to
+ * the index part; the merger turns all the parts into the file of a segment,
+ * or the files of several segments into the file of the merged segment.
+ *
+ * @author Rui Frazão
+ * @author Fábio Ferreira
+ */
+public final class DocumentStatsWriter {
+
+    private static final int SPARSE_RATIO = 4;                                  //docid range per document of a dense file
+
+    private DocumentStatsWriter() {
+    }
+
+    /**
+     * Append the record of a document to a block of statistics
+     *
+     * @param out
+     * @param docid
+     * @param fieldLengths
+     * @param nFields
+     * @param norm
+     */
+    public static void addDocument(ByteArrayOutputStream out, int docid, int[] fieldLengths, int nFields, double norm) {
+        PostingsCodec.writeVByte(out, docid);
+        PostingsCodec.writeVByte(out, nFields);
+        for (int f = 0; f < nFields; f++) {
+            PostingsCodec.writeVByte(out, fieldLengths[f]);
+        }
+        int bits = Float.floatToIntBits((float) norm);
+        out.write(bits >>> 24);
+        out.write(bits >>> 16);
+        out.write(bits >>> 8);
+        out.write(bits);
+    }
+
+    /**
+     * Create the statistics file of a segment from the parts of the indexer;
+     * a first pass finds the number of fields and the docids, the second one
+     * fills the entries
+     *
+     * @param parts
+     * @param outputFile
+     * @throws IOException
+     */
+    public static void write(File[] parts, String outputFile) throws IOException {
+        int fields = 1, nFields;
+        long[] fieldLengths = new long[0];
+        CompressedBitmap present = new CompressedBitmap();
+        ByteBuffer in;
+
+        for (File part : parts) {
+            in = ByteBuffer.wrap(Files.readAllBytes(part.toPath()));
+            while (in.hasRemaining()) {
+                present.add(PostingsCodec.readVByte(in));
+                nFields = PostingsCodec.readVByte(in);
+                fields = Math.max(fields, nFields);
+                if (nFields > fieldLengths.length) {
+                    long[] grown = new long[nFields];
+                    System.arraycopy(fieldLengths, 0, grown, 0, fieldLengths.length);
+                    fieldLengths = grown;
+                }
+                for (int f = 0; f < nFields; f++) {
+                    fieldLengths[f] += PostingsCodec.readVByte(in);
+                }
+                in.getFloat();
+            }
+        }
+
+        int[] docids = present.toArray();
+        int entry, length;
+        try (RandomAccessFile file = new RandomAccessFile(create(outputFile, fields, docids), "rw")) {
+            MappedByteBuffer out = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+
+            for (File part : parts) {
+                in = ByteBuffer.wrap(Files.readAllBytes(part.toPath()));
+                while (in.hasRemaining()) {
+                    entry = entryOffset(docids, fields, PostingsCodec.readVByte(in));
+                    nFields = PostingsCodec.readVByte(in);
+                    length = 0;
+                    for (int f = 0; f < nFields; f++) {
+                        out.putInt(entry + 8 + 4 * f, PostingsCodec.readVByte(in));
+                        length += out.getInt(entry + 8 + 4 * f);
+                    }
+                    out.putInt(entry, length);
+                    out.putFloat(entry + 4, DocumentStats.storedNorm(in.getFloat()));
+                }
+            }
+
+            writeHeader(out, fields, docids, fieldLengths);
+            out.force();
+        }
+    }
+
+    /**
+     * Create the statistics file of a merged segment from the statistics of
+     * the segments it replaces, without their deleted documents; the entries
+     * of a docid held by more than one segment are taken from the last one
+     *
+     * @param segments
+     * @param deletes - Deleted documents of each segment
+     * @param outputFile
+     * @throws IOException
+     */
+    public static void merge(List<DocumentStats> segments, List<CompressedBitmap> deletes, String outputFile) throws IOException {
+        int fields = 1;
+        CompressedBitmap live = new CompressedBitmap();
+        for (int s = 0; s < segments.size(); s++) {
+            fields = Math.max(fields, segments.get(s).getFields());
+            for (int docid : segments.get(s).getDocids()) {
+                if (!deletes.get(s).contains(docid)) {
+                    live.add(docid);
+                }
+            }
+        }
+        long[] fieldLengths = new long[fields];
+        for (int s = 0; s < segments.size(); s++) {
+            DocumentStats stats = segments.get(s);
+            for (int f = 0; f < fields; f++) {
+                fieldLengths[f] += stats.getTotalFieldLength(f);
+            }
+            for (int docid : deletes.get(s).toArray()) {
+                for (int f = 0; f < fields; f++) {
+                    fieldLengths[f] -= stats.getFieldLength(docid, f);
+                }
+            }
+        }
+
+        int[] docids = live.toArray();
+        int entry;
+        try (RandomAccessFile file = new RandomAccessFile(create(outputFile, fields, docids), "rw")) {
+            MappedByteBuffer out = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+
+            for (int s = 0; s < segments.size(); s++) {
+                DocumentStats stats = segments.get(s);
+                for (int docid : stats.getDocids()) {
+                    if (deletes.get(s).contains(docid)) {
+                        continue;
+                    }
+                    entry = entryOffset(docids, fields, docid);
+                    out.putInt(entry, stats.getLength(docid));
+                    out.putFloat(entry + 4, DocumentStats.storedNorm(stats.getNorm(docid)));
+                    for (int f = 0; f < fields; f++) {
+                        out.putInt(entry + 8 + 4 * f, stats.getFieldLength(docid, f));
+                    }
+                }
+            }
+
+            writeHeader(out, fields, docids, fieldLengths);
+            out.force();
+        }
+    }
+
+    /**
+     * Whether the documents cover so little of their docid range that the
+     * file is smaller sparse; dense files are kept otherwise, since their
+     * lookups need no search
+     *
+     * @param docids - Ascending
+     * @return true for a sparse file
+     */
+    private static boolean isSparse(int[] docids) {
+        return docids.length > 0 && docids[docids.length - 1] - (long) docids[0] + 1 > SPARSE_RATIO * (long) docids.length;
+    }
+
+    private static int entryOffset(int[] docids, int fields, int docid) {
+        int slot = isSparse(docids) ? Arrays.binarySearch(docids, docid) : docid - docids[0];
+        return DocumentStats.headerSize(fields) + (isSparse(docids) ? 4 * docids.length : 0) + slot * DocumentStats.entrySize(fields);
+    }
+
+    /**
+     * Replace a statistics file by an empty one with room for the entries of
+     * the documents, and the docids of a sparse file
+     *
+     * @param outputFile
+     * @param fields
+     * @param docids - Ascending
+     * @return Created file
+     * @throws IOException
+     */
+    private static File create(String outputFile, int fields, int[] docids) throws IOException {
+        long entries = docids.length == 0 ? 1 : isSparse(docids) ? docids.length : docids[docids.length - 1] - (long) docids[0] + 1;
+        long fileSize = DocumentStats.headerSize(fields) + (isSparse(docids) ? 4L * docids.length : 0) + entries * DocumentStats.entrySize(fields);
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IOException("Too many documents for a document statistics file: " + docids.length);
+        }
+        File file = new File(outputFile);
+        file.delete();
+        try (RandomAccessFile created = new RandomAccessFile(file, "rw")) {
+            created.setLength(fileSize);
+        }
+        return file;
+    }
+
+    private static void writeHeader(MappedByteBuffer out, int fields, int[] docids, long[] fieldLengths) {
+        long totalLength = 0;
+        for (int f = 0; f < fields; f++) {
+            totalLength += f < fieldLengths.length ? fieldLengths[f] : 0;
+        }
+        boolean sparse = isSparse(docids);
+        out.putInt(0, fields | (sparse ? DocumentStats.SPARSE : 0));
+        out.putInt(4, docids.length == 0 ? 0 : docids[0]);
+        out.putInt(8, docids.length == 0 ? 0 : docids[docids.length - 1]);
+        out.putInt(12, docids.length);
+        out.putLong(16, totalLength);
+        for (int f = 0; f < fields; f++) {
+            out.putLong(24 + 8 * f, f < fieldLengths.length ? fieldLengths[f] : 0);
+        }
+        if (sparse) {
+            for (int d = 0; d < docids.length; d++) {
+                out.putInt(DocumentStats.headerSize(fields) + 4 * d, docids[d]);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,339 @@
+package indexer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import text_corpus.DocumentConsumer;
+
+/**
+ * Adds, updates and deletes documents of an existing index without
+ * rebuilding it.
+ *
+ * Every batch of documents is inverted and merged into a new immutable
+ * segment, which is published next to the existing ones as a new
+ * generation of the index; a RankedRetrieval that shares the Segments
+ * instance searches it from its next query. Deleted documents are recorded
+ * in the deletes of their segments; an update is a delete of the old
+ * documents published together with the segment of the new ones. After
+ * each batch a background thread asks the merge policy for segments to
+ * compact and replaces them by their merge, which leaves the deleted
+ * documents out, one merge at a time; batches can be added while it merges.
+ * The merge reads a snapshot of the index, so queries and merges never
+ * remove files from under each other. A failed merge is reported by the
+ * next call that changes the index, and every published merge is reported
+ * to the MergeListener.
+ *
+ * @author Rui Frazão
+ * @author Fábio Ferreira
+ */
+public class IncrementalIndexer implements Closeable {
+
+    private static final String SCRATCH_PREFIX = "adding";
+
+    private final Segments segments;
+    private final int filenameSize;
+    private final ExecutorService mergeThread = Executors.newSingleThreadExecutor();
+    private final List<Future<Void>> merges = new ArrayList<>();               //one queued, one running, done ones
+    private final AtomicBoolean mergeQueued = new AtomicBoolean();
+    private volatile TieredMergePolicy mergePolicy = new TieredMergePolicy();
+    private volatile MergeListener mergeListener = (merged, segment) -> {
+    };
+    private boolean positions = false;
+    private long memoryBudget = -1;
+
+    public IncrementalIndexer(int filenameSize) {
+        this(filenameSize, new Segments());
+    }
+
+    public IncrementalIndexer(int filenameSize, Segments segments) {
+        this.filenameSize = filenameSize;
+        this.segments = segments;
+    }
+
+    public void setMergePolicy(TieredMergePolicy mergePolicy) {
+        this.mergePolicy = mergePolicy;
+    }
+
+    /**
+     * Receives the merges published by the merge thread
+     */
+    @FunctionalInterface
+    public interface MergeListener {
+
+        /**
+         * Called on the merge thread after a merge was published
+         *
+         * @param merged - Entries of the merged segments
+         * @param segment - Entry of the new segment; null if every document
+         * of the merged segments was deleted
+         */
+        void merged(List<Segments.Entry> merged, Segments.Entry segment);
+    }
+
+    public void setMergeListener(MergeListener mergeListener) {
+        this.mergeListener = mergeListener;
+    }
+
+    /**
+     * Keep the term positions in the new segments; a merge keeps them only if
+     * every merged segment has them
+     *
+     * @param positions
+     */
+    public synchronized void setPositions(boolean positions) {
+        this.positions = positions;
+    }
+
+    /**
+     * Bytes of the in-memory blocks of the indexer; the default share of the
+     * heap if not positive
+     *
+     * @param memoryBudget
+     */
+    public synchronized void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * First docid not used by the index, for numbering new documents
+     *
+     * @return Next docid
+     * @throws IOException
+     */
+    public int getNextDocid() throws IOException {
+        return segments.nextDocid();
+    }
+
+    /**
+     * Source of the documents of a batch, e.g. a corpus reader
+     */
+    @FunctionalInterface
+    public interface DocumentSource {
+
+        void read(DocumentConsumer documents) throws IOException;
+    }
+
+    /**
+     * Index a batch of documents into a new segment, publish it and schedule
+     * the merges it makes necessary
+     *
+     * @param documents
+     * @param tokenizer - Turns a document into a "docid TAB terms" line
+     * @param nThreads - Tokenizing/indexing threads
+     * @return Manifest entry of the new segment; null if there were no
+     * documents
+     * @throws IOException
+     * @throws IllegalArgumentException if a docid of the batch is already
+     * indexed; nothing is published then (use updateDocuments to replace it)
+     */
+    public Segments.Entry addDocuments(DocumentSource documents, Indexer.DocumentTokenizer tokenizer, int nThreads) throws IOException {
+        return indexDocuments(documents, tokenizer, nThreads, false);
+    }
+
+    /**
+     * Index a batch of documents that replace the indexed documents with the
+     * same docids; the new segment and the deletes of the old documents are
+     * published at once
+     *
+     * @param documents - Documents as "docid TAB columns" lines
+     * @param tokenizer
+     * @param nThreads
+     * @return Manifest entry of the new segment; null if there were no
+     * documents
+     * @throws IOException
+     */
+    public Segments.Entry updateDocuments(DocumentSource documents, Indexer.DocumentTokenizer tokenizer, int nThreads) throws IOException {
+        return indexDocuments(documents, tokenizer, nThreads, true);
+    }
+
+    /**
+     * Delete documents from the index
+     *
+     * @param docids
+     * @return Number of deleted documents
+     * @throws IOException
+     */
+    public int deleteDocuments(int... docids) throws IOException {
+        checkMerges();
+        int deleted = segments.delete(docids);
+        if (deleted > 0) {
+            scheduleMerge();
+        }
+        return deleted;
+    }
+
+    /**
+     * Invert a batch in a scratch directory of its own, so concurrent adds
+     * and full builds never remove each other's index parts, and publish it
+     * as a new segment. An added docid is checked against the live
+     * documents as it is read, before the batch is inverted.
+     */
+    private synchronized Segments.Entry indexDocuments(DocumentSource documents, Indexer.DocumentTokenizer tokenizer, int nThreads, boolean replace) throws IOException {
+        checkMerges();
+        File scratch = Files.createTempDirectory(segments.getDirectory().toPath(), SCRATCH_PREFIX).toFile();
+        try {
+            Indexer indexer = new Indexer(scratch);
+            CompressedBitmap docids = new CompressedBitmap();
+            indexer.setPositions(positions);
+            if (memoryBudget > 0) {
+                indexer.setMemoryBudget(memoryBudget);
+            }
+            try (IndexSnapshot indexed = segments.acquire();
+                    Indexer.Pipeline pipeline = indexer.openPipeline(tokenizer, nThreads)) {
+                documents.read((document) -> {
+                    int docid = Integer.parseInt(document.substring(0, document.indexOf('\t')).trim());
+                    if (!replace && indexed.isLive(docid)) {
+                        throw new IllegalArgumentException("Document " + docid + " is already indexed; update it instead of adding it");
+                    }
+                    docids.add(docid);
+                    pipeline.accept(document);
+                });
+                pipeline.finish();
+                if (pipeline.getDocumentCount() == 0) {
+                    return null;
+                }
+            }
+
+            Segments.Entry segment = new Merger(filenameSize, segments, scratch).createSegment();
+            segments.add(segment, docids.toArray());
+            scheduleMerge();
+            return segment;
+        } finally {
+            deleteScratch(scratch);
+        }
+    }
+
+    private static void deleteScratch(File scratch) {
+        File[] files = scratch.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        scratch.delete();
+    }
+
+    /**
+     * Queue a merge, unless one is queued and not started yet: it plans on
+     * the snapshot it acquires when it starts, which already has the latest
+     * changes
+     */
+    private synchronized void scheduleMerge() {
+        if (mergeQueued.compareAndSet(false, true)) {
+            merges.add(mergeThread.submit(this::mergeSegments));
+        }
+    }
+
+    /**
+     * Forget the finished merges
+     *
+     * @throws IOException - If one of them failed
+     */
+    private synchronized void checkMerges() throws IOException {
+        Iterator<Future<Void>> scheduled = merges.iterator();
+        while (scheduled.hasNext()) {
+            Future<Void> merge = scheduled.next();
+            if (!merge.isDone()) {
+                continue;
+            }
+            scheduled.remove();
+            try {
+                merge.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Merge interrupted");
+            } catch (ExecutionException e) {
+                throw new IOException("Segment merge failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Merge segments until the merge policy is satisfied; runs on the merge
+     * thread. A merge whose segments were replaced meanwhile is discarded and
+     * the next one is planned on a new snapshot.
+     *
+     * @return
+     * @throws IOException
+     */
+    private Void mergeSegments() throws IOException {
+        mergeQueued.set(false);
+        List<Segments.Entry> merge;
+        List<Segment> merged = new ArrayList<>();
+        List<CompressedBitmap> deletes = new ArrayList<>();
+        Segments.Entry segment;
+        while (true) {
+            try (IndexSnapshot snapshot = segments.acquire()) {                 //the merged files stay while they are read
+                if ((merge = mergePolicy.findMerge(snapshot.getEntries())) == null) {
+                    return null;
+                }
+                merged.clear();
+                deletes.clear();
+                for (int s = 0; s < snapshot.size(); s++) {
+                    if (merge.contains(snapshot.getEntries().get(s))) {
+                        merged.add(snapshot.getSegments().get(s));
+                        deletes.add(snapshot.getDeletes(s));
+                    }
+                }
+                if (merge.stream().allMatch((entry) -> entry.getLiveDocuments() == 0)) {
+                    if (segments.replace(merge, deletes, null)) {
+                        mergeListener.merged(merge, null);
+                    }
+                    continue;
+                }
+                segment = new Merger(filenameSize, segments).mergeSegments(merged, deletes);
+            }
+            if (segments.replace(merge, deletes, segment)) {                    //else stale: plan again on the new manifest
+                mergeListener.merged(merge, segment);
+            }
+        }
+    }
+
+    /**
+     * Wait for the scheduled merges
+     *
+     * @throws IOException - If a merge failed
+     */
+    public void waitForMerges() throws IOException {
+        List<Future<Void>> scheduled;
+        synchronized (this) {
+            scheduled = new ArrayList<>(merges);
+            merges.clear();
+        }
+        try {
+            for (Future<Void> merge : scheduled) {
+                merge.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Merge interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Segment merge failed", e.getCause());
+        }
+    }
+
+    /**
+     * Wait for the scheduled merges and stop the merge thread
+     *
+     * @throws IOException - If a merge failed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            waitForMerges();
+        } finally {
+            mergeThread.shutdown();
+        }
+    }
+
+}
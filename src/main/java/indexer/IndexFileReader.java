@@ -0,0 +1,67 @@
+package indexer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sequential reader of the records of a binary index file
+ *
+ * @author Rui Frazão
+ * @author Fábio Ferreira
+ */
+public class IndexFileReader implements PostingsSource {
+
+    private final DataInputStream in;
+    private String term;
+    private byte[] payload;
+
+    public IndexFileReader(File file) throws FileNotFoundException {
+        this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    /**
+     * Read the next record of the file
+     *
+     * @return false if the end of the file was reached
+     * @throws IOException
+     */
+    @Override
+    public boolean next() throws IOException {
+        try {
+            term = in.readUTF();
+        } catch (EOFException e) {
+            term = null;
+            payload = null;
+            return false;
+        }
+        payload = new byte[PostingsCodec.readVByte(in)];
+        in.readFully(payload);
+        return true;
+    }
+
+    @Override
+    public String getTerm() {
+        return term;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    @Override
+    public PostingsList getPostings() {
+        return PostingsCodec.decode(ByteBuffer.wrap(payload));
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+}
@@ -0,0 +1,130 @@
+package indexer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A generation of the index as its readers see it: the segments of one
+ * published manifest with their deleted documents, opened once and shared
+ * by every query that holds the snapshot.
+ *
+ * A snapshot is reference counted. Segments.acquire returns it with one
+ * reference; a reader that shares it takes more references with tryIncRef
+ * and gives each back with decRef. When the last reference is released the
+ * segments no other snapshot uses are closed, and the files of those that
+ * are no longer published are reclaimed, so a merge or a new full index
+ * never removes files under a running query.
+ *
+ * @author Rui Frazão
+ * @author Fábio Ferreira
+ */
+public class IndexSnapshot implements Closeable {
+
+    private final Segments index;
+    private final long generation;
+    private final List<Segments.Entry> entries;
+    private final List<Segment> segments;
+    private final List<CompressedBitmap> deletes;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    IndexSnapshot(Segments index, long generation, List<Segments.Entry> entries, List<Segment> segments, List<CompressedBitmap> deletes) {
+        this.index = index;
+        this.generation = generation;
+        this.entries = Collections.unmodifiableList(entries);
+        this.segments = Collections.unmodifiableList(segments);
+        this.deletes = Collections.unmodifiableList(deletes);
+    }
+
+    /**
+     * Generation of the manifest the snapshot was opened from
+     *
+     * @return Generation
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Manifest entries of the segments, oldest first
+     *
+     * @return Entries
+     */
+    public List<Segments.Entry> getEntries() {
+        return entries;
+    }
+
+    public List<Segment> getSegments() {
+        return segments;
+    }
+
+    /**
+     * Deleted documents of a segment of the snapshot; they do not change
+     * while the snapshot is held
+     *
+     * @param segment - Index of the segment in getSegments()
+     * @return Bitmap of docids
+     */
+    public CompressedBitmap getDeletes(int segment) {
+        return deletes.get(segment);
+    }
+
+    public int size() {
+        return segments.size();
+    }
+
+    /**
+     * Whether a docid is indexed in a segment of the snapshot and not deleted
+     *
+     * @param docid
+     * @return true if the document is live
+     */
+    public boolean isLive(int docid) {
+        for (int s = 0; s < segments.size(); s++) {
+            if (segments.get(s).getDocumentStats().contains(docid) && !deletes.get(s).contains(docid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take a reference to the snapshot, unless its last reference was
+     * already released
+     *
+     * @return true if the reference was taken
+     */
+    public boolean tryIncRef() {
+        int count;
+        do {
+            count = references.get();
+            if (count <= 0) {
+                return false;
+            }
+        } while (!references.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    /**
+     * Give back a reference; the last one releases the segments of the
+     * snapshot
+     *
+     * @throws IOException
+     */
+    public void decRef() throws IOException {
+        int count = references.decrementAndGet();
+        if (count == 0) {
+            index.release(this);
+        } else if (count < 0) {
+            throw new IllegalStateException("Index snapshot " + generation + " released too many times");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        decRef();
+    }
+
+}
@@ -2,14 +2,26 @@ package indexer;
 
 import file_handling.FileHandler;
 import file_handling.MemoryManager;
+import file_handling.WriterPool;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Map;
-import java.util.HashMap;
-import java.util.Locale;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import text_corpus.DocumentConsumer;
 
 /**
  * Create an inverted index of terms in documents
@@ -19,8 +31,11 @@ import java.util.Locale;
  */
 public class Indexer {
 
-    private final String indexPath = "./index/";
-    private final int threshold = 70;
+    private final String indexPath;
+    private final int budgetPercentage = 40;                                     //of the max heap, for all blocks
+    private long memoryBudget = new MemoryManager().getBudget(budgetPercentage);
+    private final int batchSize = 1000;
+    private boolean positions = false;
     public final String termDelimiter = ";", postingsDelimiter = ":";
     public final String extension = ".ind";
 
@@ -31,11 +46,32 @@ public class Indexer {
      * @param clearDirectory
      */
     public Indexer(boolean clearDirectory) {
-        if (!clearDirectory) {
-            return;
+        this.indexPath = "./index/";
+        if (clearDirectory) {
+            clearDirectory(new File(indexPath));
         }
-        File baseDir = new File(indexPath);
+    }
+
+    /**
+     * Write the index parts to a directory of their own, e.g. the scratch
+     * directory of a batch added to an existing index; it is created, or
+     * emptied if it exists
+     *
+     * @param directory
+     */
+    public Indexer(File directory) {
+        this.indexPath = directory.getPath() + File.separator;
+        clearDirectory(directory);
+    }
 
+    /**
+     * Do not clean index folder before starting indexing
+     */
+    public Indexer() {
+        this.indexPath = "./index/";
+    }
+
+    private static void clearDirectory(File baseDir) {
         if (!baseDir.exists()) {
             baseDir.mkdir();
         } else {
@@ -49,9 +85,31 @@ public class Indexer {
     }
 
     /**
-     * Do not clean index folder before starting indexing
+     * Bytes the in-memory blocks may use before they are flushed as index
+     * parts; shared by the workers of a parallel indexer
+     *
+     * @param memoryBudget
      */
-    public Indexer() {
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = Math.max(1, memoryBudget);
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Keep the ordinal positions of the terms in the postings, for phrase
+     * and proximity queries
+     *
+     * @param positions
+     */
+    public void setPositions(boolean positions) {
+        this.positions = positions;
+    }
+
+    public boolean hasPositions() {
+        return positions;
     }
 
     /**
@@ -62,115 +120,256 @@ public class Indexer {
      * @throws IOException
      */
     public void SPIMIInvert(String inputFileName) throws FileNotFoundException, IOException {
-        FileHandler fh = new FileHandler();
-        MemoryManager mm = new MemoryManager();
-        Map<String, Map> dictionary = new HashMap<>();
-        Map<String, Map<Integer, Double>> tmpDict = new HashMap<>();
-        Map<Integer, Double> postingList = new HashMap<>();
+        PostingsBlock block = new PostingsBlock(positions);
         BufferedReader br = new BufferedReader(new FileReader(inputFileName));
         String line = br.readLine();
         long nLines = 0;
-        double docNorm;
 
         int indexPartCounter = 0;
         String indexPartName;
         int docid;
-        String[] tokens;
 
         while (line != null) {
             nLines += 1;
-            postingList = new HashMap<>();
-            docid = Integer.parseInt(line.substring(0, line.indexOf("\t")));
-            tokens = line.split("\\s+");
-            tmpDict.clear();
-
-            for (int i = 1; i < tokens.length; i++) {                           //starts in i=1 to ignore docid
-                if (!dictionary.containsKey(tokens[i])) {
-                    postingList = new HashMap<>();
-                    postingList.put(docid, 1.0);
-                } else {
-                    postingList = dictionary.get(tokens[i]);
-                    postingList.put(docid, postingList.getOrDefault(docid, 0.0) + 1);
-                }
-
-                tmpDict.put(tokens[i], postingList);
-                dictionary.put(tokens[i], postingList);
-                if (i == tokens.length - 1) {       //Calculate normalized TF
-                    
-                    docNorm = calculateDocumentNorm(tmpDict, docid);
-                    for (String t: tmpDict.keySet()){
-                        dictionary.get(t).replace(docid, calculateTF(tmpDict.get(t).get(docid)) / docNorm);
-                    }
-                    
-                }
-//                System.out.println(dictionary);
-            }
-            
-            tmpDict.clear();
+            docid = block.addDocument(line);
             line = br.readLine();
 
-            if (mm.getMemoryUsage() >= threshold) {
+            if (block.estimatedBytes() >= memoryBudget) {
                 indexPartName = "indexPart" + indexPartCounter + extension;
                 System.out.println("DUMP " + docid + " " + indexPath + "" + indexPartName);
-                writeDictionaryToFile(dictionary, indexPath + "indexPart" + indexPartCounter + extension);            //dump to file
-                postingList.clear();
-                dictionary.clear();
-                tmpDict.clear();
-                System.gc();
+                writeBlockToFile(block, indexPath + "indexPart" + indexPartCounter + extension);            //dump to file
+                block.clear();
                 indexPartCounter++;
             }
 
         }
 
-        writeDictionaryToFile(dictionary, indexPath + "indexPart" + indexPartCounter + extension);            //dump to file
-        postingList.clear();
-        dictionary.clear();
-        tmpDict.clear();
-        System.gc();
+        writeBlockToFile(block, indexPath + "indexPart" + indexPartCounter + extension);            //dump to file
+        block.clear();
         br.close();
 
-        File f = new File("index_info.txt");
-        f.delete();
-        fh.write(f.getName(), String.valueOf(nLines));
-        clear_directoryFile();
+        writeIndexInfo(nLines);
+    }
+
+    /**
+     * Parallel SPIMIInvert: the calling thread reads batches of documents and
+     * feeds them to nThreads workers; each worker builds its own blocks and
+     * flushes them as its own index parts.
+     *
+     * @param inputFileName
+     * @param nThreads
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public void SPIMIInvert(String inputFileName, int nThreads) throws FileNotFoundException, IOException {
+        if (nThreads <= 1) {
+            SPIMIInvert(inputFileName);
+            return;
+        }
+
+        try (Pipeline pipeline = openPipeline((line) -> line, nThreads);
+                BufferedReader br = new BufferedReader(new FileReader(inputFileName))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                pipeline.accept(line);
+            }
+            pipeline.finish();
+        }
+    }
+
+    /**
+     * Start a parallel SPIMIInvert fed one document at a time, e.g. straight
+     * from a corpus reader: documents are queued in batches to nThreads
+     * workers that tokenize and invert them.
+     *
+     * @param tokenizer - Turns a document into a "docid TAB terms" line; called
+     * from the workers
+     * @param nThreads
+     * @return Pipeline; call finish after the last document
+     */
+    public Pipeline openPipeline(DocumentTokenizer tokenizer, int nThreads) {
+        return new Pipeline(tokenizer, Math.max(1, nThreads));
     }
 
-    private double calculateDocumentNorm(Map<String, Map<Integer, Double>> docMap, int id) {
-        double squareSum = 0;
-        for (String s : docMap.keySet()) {
-            squareSum += Math.pow(calculateTF(docMap.get(s).get(id)), 2);
+    /**
+     * Tokenizer used by the workers of a pipeline
+     */
+    @FunctionalInterface
+    public interface DocumentTokenizer {
+
+        String tokenize(String document) throws IOException;
+    }
+
+    /**
+     * Bounded queue of document batches in front of the inverting workers;
+     * accept blocks while the workers are behind. Closing a pipeline that was
+     * not finished stops the workers and waits for them to end.
+     */
+    public class Pipeline implements DocumentConsumer, Closeable {
+
+        private final BlockingQueue<List<String>> batches;
+        private final AtomicInteger indexPartCounter = new AtomicInteger();
+        private final ExecutorService workers;
+        private final List<Future<Void>> results = new ArrayList<>();
+        private final int nThreads;
+        private List<String> batch = new ArrayList<>(batchSize);
+        private long nLines = 0;
+        private boolean finished = false;
+
+        private Pipeline(DocumentTokenizer tokenizer, int nThreads) {
+            this.nThreads = nThreads;
+            this.batches = new ArrayBlockingQueue<>(nThreads * 2);
+            this.workers = Executors.newFixedThreadPool(nThreads);
+            for (int t = 0; t < nThreads; t++) {
+                results.add(workers.submit(() -> invertBatches(batches, indexPartCounter, tokenizer, memoryBudget / nThreads)));
+            }
+        }
+
+        @Override
+        public void accept(String document) throws IOException {
+            nLines += 1;
+            batch.add(document);
+            if (batch.size() == batchSize) {
+                putBatch(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+
+        /**
+         * Wait for the workers to flush their last index parts and write the
+         * index information
+         *
+         * @throws IOException
+         */
+        public void finish() throws IOException {
+            if (!batch.isEmpty()) {
+                putBatch(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+            for (int t = 0; t < nThreads; t++) {
+                putBatch(Collections.emptyList());                              //end of input
+            }
+
+            try {
+                for (Future<Void> result : results) {
+                    result.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Indexing interrupted");
+            } catch (ExecutionException e) {
+                throw new IOException("Indexing worker failed", e.getCause());
+            }
+            finished = true;
+            workers.shutdown();
+
+            writeIndexInfo(nLines);
+        }
+
+        public long getDocumentCount() {
+            return nLines;
+        }
+
+        @Override
+        public void close() {
+            if (!finished) {
+                workers.shutdownNow();
+                try {
+                    workers.awaitTermination(1, TimeUnit.MINUTES);              //no part is written after close
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Queue a batch for the workers; fails instead of blocking forever if
+         * a worker has died
+         *
+         * @param batch
+         * @throws IOException
+         */
+        private void putBatch(List<String> batch) throws IOException {
+            try {
+                while (!batches.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                    for (Future<Void> result : results) {
+                        if (result.isDone()) {
+                            result.get();
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Indexing interrupted");
+            } catch (ExecutionException e) {
+                throw new IOException("Indexing worker failed", e.getCause());
+            }
         }
-        return Math.sqrt(squareSum);
     }
 
     /**
-     * Calculates Term Frequency weight of a term in a document
+     * Worker of the parallel SPIMIInvert; tokenizes and inverts batches until
+     * an empty batch is received
      *
-     * @param term_freq
-     * @return Term Frequency Weight
+     * @param batches
+     * @param indexPartCounter
+     * @param tokenizer
+     * @param blockBudget - Bytes of the block of this worker
+     * @return
+     * @throws InterruptedException
+     * @throws IOException
      */
-    private double calculateTF(double term_freq) {
-        return (1 + Math.log10(term_freq));
+    private Void invertBatches(BlockingQueue<List<String>> batches, AtomicInteger indexPartCounter, DocumentTokenizer tokenizer, long blockBudget) throws InterruptedException, IOException {
+        PostingsBlock block = new PostingsBlock(positions);
+        String indexPartName;
+        int docid = 0;
+        List<String> batch;
+
+        while (!(batch = batches.take()).isEmpty()) {
+            for (String line : batch) {
+                docid = block.addDocument(tokenizer.tokenize(line));
+
+                if (block.estimatedBytes() >= blockBudget) {
+                    indexPartName = "indexPart" + indexPartCounter.getAndIncrement() + extension;
+                    System.out.println("DUMP " + docid + " " + indexPath + "" + indexPartName);
+                    writeBlockToFile(block, indexPath + indexPartName);            //dump to file
+                    block.clear();
+                }
+            }
+        }
+
+        if (!block.isEmpty()) {
+            writeBlockToFile(block, indexPath + "indexPart" + indexPartCounter.getAndIncrement() + extension);
+            block.clear();
+        }
+        return null;
+    }
+
+    private void writeIndexInfo(long nLines) {
+        FileHandler fh = new FileHandler();
+        File f = new File("index_info.txt");
+        f.delete();
+        fh.write(f.getName(), String.valueOf(nLines));
+        clear_directoryFile();
     }
 
     /**
-     * Write dictionary
+     * Write a block as binary postings records sorted by term, and the
+     * statistics of its documents to a part with the same name
      *
-     * @param dict
+     * @param block
      * @param outputFile
+     * @throws IOException
      */
-    public void writeDictionaryToFile(Map<String, Map> dict, String outputFile) {
-        FileHandler fh = new FileHandler();
-        StringBuilder sb = new StringBuilder();
-
-        dict.keySet().stream().sorted().forEach((term) -> {
-            sb.setLength(0);
-            sb.append(term).append(termDelimiter);
-            dict.get(term).keySet().stream().sorted().forEach((docid) -> {
-                sb.append(docid).append(postingsDelimiter).append(String.format(Locale.US, "%.2f", dict.get(term).get(docid))).append(termDelimiter);
-            });
-            fh.write(outputFile, sb.deleteCharAt(sb.length() - 1).toString());
-        });
+    public void writeBlockToFile(PostingsBlock block, String outputFile) throws IOException {
+        String statsFile = (outputFile.endsWith(extension) ? outputFile.substring(0, outputFile.length() - extension.length()) : outputFile)
+                + DocumentStats.PART_EXTENSION;
+        try (WriterPool writers = new WriterPool()) {
+            for (int id : block.sortedTermIds()) {
+                writers.write(outputFile, PostingsCodec.encodeRecord(block.getTerm(id), block.getPostings(id)));
+            }
+            writers.write(statsFile, block.getDocumentStats());
+        }
     }
 
     /**
@@ -0,0 +1,218 @@
+package indexer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Memory-mapped, sorted term lexicon created by LexiconWriter.
+ *
+ * A lookup is a binary search over the table of entry offsets; terms are
+ * compared as UTF-8 bytes, which matches the String order of the tokenizer
+ * output. Only absolute reads are used on the mapped buffer.
+ *
+ * @author Rui Frazão
+ * @author Fábio Ferreira
+ */
+public class Lexicon implements Closeable {
+
+    private static final int TRAILER_SIZE = 20;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int nTerms;
+    private final int tableStart;
+    private final String[] files;
+
+    public Lexicon(File lexiconFile) throws IOException {
+        this.file = new RandomAccessFile(lexiconFile, "r");
+        FileChannel channel = file.getChannel();
+        this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+        int trailer = buffer.capacity() - TRAILER_SIZE;
+        this.nTerms = buffer.getInt(trailer);
+        this.tableStart = (int) buffer.getLong(trailer + 4);
+        int filesTableStart = (int) buffer.getLong(trailer + 12);
+
+        ByteBuffer filesTable = buffer.duplicate();
+        filesTable.position(filesTableStart);
+        this.files = new String[filesTable.getInt()];
+        for (int f = 0; f < files.length; f++) {
+            byte[] name = new byte[filesTable.getShort() & 0xFFFF];
+            filesTable.get(name);
+            files[f] = new String(name, StandardCharsets.UTF_8);
+        }
+    }
+
+    public int size() {
+        return nTerms;
+    }
+
+    /**
+     * Find a term in the lexicon
+     *
+     * @param term
+     * @return Lexicon entry of the term; null if the term does not exist
+     */
+    public Entry lookup(String term) {
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        int low = 0, high = nTerms - 1, middle, entry, cmp;
+
+        while (low <= high) {
+            middle = (low + high) >>> 1;
+            entry = buffer.getInt(tableStart + middle * 4);
+            cmp = compareTerm(entry, key);
+            if (cmp < 0) {
+                low = middle + 1;
+            } else if (cmp > 0) {
+                high = middle - 1;
+            } else {
+                return readEntry(term, entry + 2 + key.length);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Entry of the term at a given rank of the sorted lexicon, for reading
+     * the terms in order
+     *
+     * @param index - 0 to size() - 1
+     * @return Lexicon entry
+     */
+    public Entry getEntry(int index) {
+        int entry = buffer.getInt(tableStart + index * 4);
+        byte[] term = new byte[buffer.getShort(entry) & 0xFFFF];
+        for (int b = 0; b < term.length; b++) {
+            term[b] = buffer.get(entry + 2 + b);
+        }
+        return readEntry(new String(term, StandardCharsets.UTF_8), entry + 2 + term.length);
+    }
+
+    private int compareTerm(int entry, byte[] key) {
+        int length = buffer.getShort(entry) & 0xFFFF, cmp;
+        for (int b = 0; b < length && b < key.length; b++) {
+            cmp = (buffer.get(entry + 2 + b) & 0xFF) - (key[b] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+    private Entry readEntry(String term, int position) {
+        return new Entry(term,
+                buffer.getInt(position),
+                buffer.getLong(position + 4),
+                buffer.getFloat(position + 12),
+                buffer.getFloat(position + 16),
+                buffer.getFloat(position + 20),
+                buffer.getFloat(position + 24),
+                files[buffer.getShort(position + 28) & 0xFFFF],
+                buffer.getLong(position + 30),
+                buffer.getInt(position + 38));
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Lexicon information of a term
+     */
+    public static class Entry {
+
+        private final String term;
+        private final int documentFrequency;
+        private final long collectionFrequency;
+        private final float idf;
+        private final float maxWeight;
+        private final float maxBm25;
+        private final float maxBm25f;
+        private final String file;
+        private final long offset;
+        private final int length;
+
+        public Entry(String term, int documentFrequency, long collectionFrequency, float idf, float maxWeight, float maxBm25, float maxBm25f, String file, long offset, int length) {
+            this.term = term;
+            this.documentFrequency = documentFrequency;
+            this.collectionFrequency = collectionFrequency;
+            this.idf = idf;
+            this.maxWeight = maxWeight;
+            this.maxBm25 = maxBm25;
+            this.maxBm25f = maxBm25f;
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getTerm() {
+            return term;
+        }
+
+        public int getDocumentFrequency() {
+            return documentFrequency;
+        }
+
+        /**
+         * Number of occurrences of the term in the documents of the segment
+         *
+         * @return Collection frequency
+         */
+        public long getCollectionFrequency() {
+            return collectionFrequency;
+        }
+
+        public float getIdf() {
+            return idf;
+        }
+
+        /**
+         * Upper bound of the weight of the term in any document
+         *
+         * @return Maximum weight
+         */
+        public float getMaxWeight() {
+            return maxWeight;
+        }
+
+        /**
+         * Upper bound of the BM25 score of the term in any document, without
+         * the idf, for the default parameters of Bm25
+         *
+         * @return Maximum BM25 score
+         */
+        public float getMaxBm25() {
+            return maxBm25;
+        }
+
+        /**
+         * Upper bound of the BM25F score of the term in any document, without
+         * the idf, for the default parameters of Bm25
+         *
+         * @return Maximum BM25F score
+         */
+        public float getMaxBm25f() {
+            return maxBm25f;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package indexer;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the sorted term lexicon read by Lexicon.
+ *
+ * Each entry holds the term, its df, collection frequency and idf, the
+ * upper bounds of its scores and the location of its postings payload.
+ * Entries are written as they are added; the table of entry offsets, the
+ * table of postings file names and a fixed size trailer are written on close.
+ *
+ * @author Rui Frazão
+ * @author Fábio Ferreira
+ */
+public class LexiconWriter implements Closeable {
+
+    private final DataOutputStream out;
+    private final List<String> files = new ArrayList<>();
+    private final Map<String, Integer> fileIds = new HashMap<>();
+    private int[] entryOffsets = new int[1024];
+    private int nTerms = 0;
+    private String lastTerm;
+
+    public LexiconWriter(String outputFile) throws FileNotFoundException {
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)));
+    }
+
+    /**
+     * Add a term to the lexicon; terms must be added in ascending order
+     *
+     * @param term
+     * @param df - Num of documents where the term is
+     * @param cf - Num of occurrences of the term in the collection
+     * @param idf
+     * @param maxWeight - Maximum weight of the term in a document
+     * @param maxBm25 - Maximum BM25 score of the term in a document, without idf
+     * @param maxBm25f - Maximum BM25F score of the term in a document, without idf
+     * @param file - Postings file name
+     * @param offset - Offset of the postings payload in the file
+     * @param length - Length of the postings payload
+     * @throws IOException
+     */
+    public void add(String term, int df, long cf, float idf, float maxWeight, float maxBm25, float maxBm25f, String file, long offset, int length) throws IOException {
+        if (lastTerm != null && term.compareTo(lastTerm) <= 0) {
+            throw new IllegalStateException("Terms must be added in ascending order: " + lastTerm + " >= " + term);
+        }
+        Integer fileId = fileIds.get(file);
+        if (fileId == null) {
+            fileId = files.size();
+            files.add(file);
+            fileIds.put(file, fileId);
+        }
+        if (nTerms == entryOffsets.length) {
+            entryOffsets = Arrays.copyOf(entryOffsets, nTerms * 2);
+        }
+        entryOffsets[nTerms++] = out.size();
+
+        byte[] termBytes = term.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(termBytes.length);
+        out.write(termBytes);
+        out.writeInt(df);
+        out.writeLong(cf);
+        out.writeFloat(idf);
+        out.writeFloat(maxWeight);
+        out.writeFloat(maxBm25);
+        out.writeFloat(maxBm25f);
+        out.writeShort(fileId);
+        out.writeLong(offset);
+        out.writeInt(length);
+        lastTerm = term;
+    }
+
+    @Override
+    public void close() throws IOException {
+        long tableStart = out.size();
+        for (int t = 0; t < nTerms; t++) {
+            out.writeInt(entryOffsets[t]);
+        }
+        long filesTableStart = out.size();
+        out.writeInt(files.size());
+        for (String file : files) {
+            byte[] name = file.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(name.length);
+            out.write(name);
+        }
+        out.writeInt(nTerms);
+        out.writeLong(tableStart);
+        out.writeLong(filesTableStart);
+        out.close();
+    }
+
+}
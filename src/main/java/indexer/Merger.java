@@ -1,22 +1,19 @@
 package indexer;
 
-import file_handling.FileHandler;
-import file_handling.MemoryManager;
-import java.io.BufferedReader;
+import file_handling.WriterPool;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Stream;
+import java.util.PriorityQueue;
 
 /**
  * Final Step of Index creation - Merging the documents created by the Indexer
- * Class
+ * Class into a segment of the index, or merging segments into a larger one
  *
  * @author Fábio Ferreira
  * @author Rui Frazão
@@ -24,199 +21,266 @@ import java.util.stream.Stream;
 public class Merger {
 
     private final Indexer i = new Indexer();
-    private final String indexPath = "index/";
-    private final String finalIndexPath = "inverted_index/";
-    private final int nFiles;
-    private final File baseDir = new File(indexPath);
-    private final File[] files = baseDir.listFiles((File file) -> file.isFile());
-    private List<BufferedReader> bufferList = new ArrayList<>();
-
-    private final Map<String, String> finalIndex = new HashMap<>();
-    private final double threshold = 70;
-    
+    private final String indexPath;
+    private final File baseDir;
+    private List<? extends PostingsSource> bufferList;
+
     private final int invIndexFilenamesize;
 
-    private final String dictionaryPath = "dictionary/";
+    private final Segments segments;
+    private final Map<String, Long> finalIndexSizes = new HashMap<>();
+    private File segmentDir;
+    private LexiconWriter lexicon;
+    private WriterPool finalIndexWriters;
+    private Bm25 bm25;
+    private int[] fieldFreqs;
 //    Map<String, Double> tokenIDFDictionary = new HashMap<>();
-    private final String indexInfo = "index_info.txt";
     private long indexSize;
 //    private final int postingsLimit = 500;
 
     /**
-     * Check if index folder exists and is empty; If not creates it or deletes
-     * its content; Initialize a BufferedReader per file;
+     * Merger of the segments of the default index
      *
      * @param filenameSize
-     * @throws FileNotFoundException
      */
-    public Merger(int filenameSize) throws FileNotFoundException, IOException {
-        FileHandler fh = new FileHandler();
-        this.nFiles = files.length;
-        this.bufferList = initializeBuffers();
-
-        File finalIndexDir = new File(finalIndexPath);
-        File dictionaryDir = new File(dictionaryPath);
+    public Merger(int filenameSize) {
+        this(filenameSize, new Segments());
+    }
 
-        if (!finalIndexDir.exists() || !dictionaryDir.exists()) {
-            finalIndexDir.mkdir();
-            dictionaryDir.mkdir();
-        } else {
-            File[] finalIndexFiles = finalIndexDir.listFiles();
-            if (finalIndexFiles.length > 0) {
-                for (File f : finalIndexFiles) {
-                    f.delete();
-                }
-            }
-            File[] finalDictFiles = dictionaryDir.listFiles();
-            if (finalDictFiles.length > 0) {
-                for (File f : finalDictFiles) {
-                    f.delete();
-                }
-            }
-        }
+    /**
+     * @param filenameSize - Length of the term prefix that names a postings
+     * file
+     * @param segments - Index where the segments are created
+     */
+    public Merger(int filenameSize, Segments segments) {
+        this(filenameSize, segments, new File("index/"));
+    }
 
-        if (!new File(indexInfo).exists()) {
-            System.err.println("File indexInfo does not exist!");
-        } else {
-            this.indexSize = Long.parseLong(fh.readIndexInfo(indexInfo));
-        }
-        
+    /**
+     * @param filenameSize - Length of the term prefix that names a postings
+     * file
+     * @param segments - Index where the segments are created
+     * @param indexDirectory - Directory of the parts written by the Indexer
+     */
+    public Merger(int filenameSize, Segments segments, File indexDirectory) {
         this.invIndexFilenamesize = filenameSize;
+        this.segments = segments;
+        this.baseDir = indexDirectory;
+        this.indexPath = indexDirectory.getPath() + File.separator;
     }
 
-    public void setBufferList(List<BufferedReader> bufferList) {
+    public void setBufferList(List<IndexFileReader> bufferList) {
         this.bufferList = bufferList;
     }
 
     /**
-     * Initialize a BufferedReader per file and add to List
+     * Initialize a reader per file created by the indexer and add to List
      *
-     * @return List of BufferedReader objects
+     * @return List of IndexFileReader objects
      * @throws FileNotFoundException
      */
-    public final List<BufferedReader> initializeBuffers() throws FileNotFoundException {
-        List<BufferedReader> brList = new ArrayList<>();
+    public final List<IndexFileReader> initializeBuffers() throws FileNotFoundException {
+        List<IndexFileReader> brList = new ArrayList<>();
+        File[] files = baseDir.listFiles((File file) -> file.isFile() && file.getName().endsWith(i.extension));
         Arrays.sort(files);
-        for (int buffcounter = 0; buffcounter < nFiles; buffcounter++) {
-            brList.add(new BufferedReader(new FileReader(files[buffcounter])));
+        for (File file : files) {
+            brList.add(new IndexFileReader(file));
         }
         return brList;
     }
 
     /**
-     * Check if term is the smallest term in array of last read terms from index
-     * files
+     * Append the postings of a term to its postings file and register the
+     * offset of the postings in the lexicon, with the statistics of the term
      *
      * @param term
-     * @param lastTerms
-     * @return true if term is the smallest; false otherwise
+     * @param postings
+     * @throws IOException
      */
-    public boolean smallestInArray(String term, String[] lastTerms) {
-        for (String lastTerm : lastTerms) {
-            if (lastTerm != null && term.compareTo(lastTerm) >= 0) {
-                return false;
-            }
-        }
-        return true;
+    private void writeTermToFinalIndex(String term, PostingsList postings) throws IOException {
+        String filename = term.substring(0, invIndexFilenamesize) + i.extension;
+        byte[] payload = PostingsCodec.encode(postings);
+        byte[] record = PostingsCodec.encodeRecord(term, payload);
+        long fileSize = finalIndexSizes.getOrDefault(filename, 0L);
+
+        finalIndexWriters.write(new File(segmentDir, filename).getPath(), record);
+        finalIndexSizes.put(filename, fileSize + record.length);
+        addToLexicon(term, postings, filename, fileSize + record.length - payload.length, payload.length);
     }
 
     /**
-     * Write dictionary to disk
+     * Register a term in the lexicon with the statistics of its postings,
+     * gathered in a single pass: df, collection frequency, idf and the
+     * maximum weight, BM25 and BM25F score of the term in a document. The
+     * maxima are rounded up so that they are upper bounds of the scores
+     * computed at query time.
      *
-     * @param lastTerms
-     * @param forceWriteLast
+     * @param term
+     * @param postings
+     * @param filename - Postings file of the term
+     * @param offset - Offset of the postings payload in the file
+     * @param length - Length of the postings payload
+     * @throws IOException
      */
-    public void writeDictionaryToFinalIndex(String[] lastTerms, boolean forceWriteLast) {
-        FileHandler fh = new FileHandler();
-
-        Stream<String> sortedDict = finalIndex.keySet().stream().sorted();
-
-        if (forceWriteLast) {
-            sortedDict.forEach(s -> {
-                fh.write(finalIndexPath + s.substring(0, invIndexFilenamesize) + ".ind", s + i.termDelimiter + finalIndex.get(s));
-                fh.write(dictionaryPath + "dictionary.dict", s + i.termDelimiter + String.format(java.util.Locale.US, "%.2f", calculateTermIDF(finalIndex.get(s))));
-                finalIndex.remove(s);
-            });
-        } else {
-            sortedDict.filter(s -> smallestInArray(s, lastTerms)).forEach(s -> {
-                fh.write(finalIndexPath + s.substring(0, invIndexFilenamesize) + ".ind", s + i.termDelimiter + finalIndex.get(s));
-                fh.write(dictionaryPath + "dictionary.dict", s + i.termDelimiter + String.format(java.util.Locale.US, "%.2f", calculateTermIDF(finalIndex.get(s))));
-                finalIndex.remove(s);
-            });
-
+    private void addToLexicon(String term, PostingsList postings, String filename, long offset, int length) throws IOException {
+        long collectionFrequency = 0;
+        double maxWeight = 0, maxBm25 = 0, maxBm25f = 0;
+        int docid, tf, nFields;
+        for (int p = 0; p < postings.size(); p++) {
+            docid = postings.getDocid(p);
+            tf = postings.getTermFrequency(p);
+            nFields = postings.getFieldFrequencies(p, fieldFreqs);
+            collectionFrequency += tf;
+            maxWeight = Math.max(maxWeight, postings.getWeight(p));
+            maxBm25 = Math.max(maxBm25, bm25.score(tf, docid));
+            maxBm25f = Math.max(maxBm25f, bm25.fieldScore(fieldFreqs, nFields, docid));
         }
+        lexicon.add(term, postings.size(), collectionFrequency, (float) idf(indexSize, postings.size()),
+                upperBound(maxWeight), upperBound(maxBm25), upperBound(maxBm25f), filename, offset, length);
     }
 
     /**
-     * Read terms from every file created by the indexer and merge results.
+     * Merge the files created by the indexer into a segment and publish it
+     * as the whole index, replacing every previous segment; readers keep
+     * searching the previous generation until they release it
      *
      * @throws IOException
      */
     public void createFinalIndex() throws IOException {
+        segments.replaceAll(createSegment());
+    }
+
+    /**
+     * Merge the files created by the indexer into a new segment, which is not
+     * published
+     *
+     * @return Manifest entry of the segment
+     * @throws IOException
+     */
+    public Segments.Entry createSegment() throws IOException {
         System.out.println("Merging");
         clear_directoryFile();
-        MemoryManager mm = new MemoryManager();
-        String line, term = null, postings;
-        int fileCounter;
-        String[] currentTerms = new String[nFiles], postingsSplit;
-
-        while (!bufferList.isEmpty()) {
-            fileCounter = 0;
-            for (BufferedReader br : bufferList) {
-                line = br.readLine();
-                if (line == null) {
-                    currentTerms = chopTermOfArray(currentTerms, term);
-                    br.close();
-                    bufferList.remove(br);
-                    break;
-                }
-                term = line.split(i.termDelimiter)[0];
-                postings = line.substring(line.indexOf(term) + term.length() + 1);
-//                postingsSplit = postings.split(":");
-//                if (postingsSplit.length > postingsLimit){
-//                    postings = postings.substring(0, postings.indexOf(postingsSplit[postingsLimit]));
-//                }
-                currentTerms[fileCounter] = term;
-                if (!finalIndex.containsKey(term)) {
-                    finalIndex.put(term, postings);
-                } else {
-                    finalIndex.put(term, finalIndex.get(term) + i.termDelimiter + postings);
-                }
+        if (bufferList == null) {
+            bufferList = initializeBuffers();
+        }
+        File[] statsFiles = baseDir.listFiles((File file) -> file.isFile() && file.getName().endsWith(DocumentStats.PART_EXTENSION));
+        Arrays.sort(statsFiles);
+        segmentDir = segments.createSegmentDirectory();
+        DocumentStatsWriter.write(statsFiles, new File(segmentDir, Segment.DOCUMENT_STATS_FILE).getPath());
+        return writeSegment(bufferList);
+    }
 
-                fileCounter++;
-            }
+    /**
+     * Merge published segments into a new segment, which is not published;
+     * the deleted documents of the segments are left out
+     *
+     * @param merged - Segments in manifest order
+     * @param deletes - Deleted documents of each segment
+     * @return Manifest entry of the segment
+     * @throws IOException
+     */
+    public Segments.Entry mergeSegments(List<Segment> merged, List<CompressedBitmap> deletes) throws IOException {
+        List<DocumentStats> stats = new ArrayList<>();
+        List<PostingsSource> sources = new ArrayList<>();
+        for (int s = 0; s < merged.size(); s++) {
+            stats.add(merged.get(s).getDocumentStats());
+            sources.add(merged.get(s).terms(deletes.get(s)));
+        }
+        segmentDir = segments.createSegmentDirectory();
+        DocumentStatsWriter.merge(stats, deletes, new File(segmentDir, Segment.DOCUMENT_STATS_FILE).getPath());
+        return writeSegment(sources);
+    }
 
-            if (mm.getMemoryUsage() >= threshold) {
-                writeDictionaryToFinalIndex(currentTerms, false);
-//                System.out.println(finalIndex.size()+"\t"+ Arrays.toString(currentTerms));
-//                System.out.println("WRITING "+mm.getMemoryUsage());
-                System.gc();
-            }
+    /**
+     * Merge the terms of every source with a k-way merge into the segment
+     * directory, which already holds the document statistics; the postings
+     * of a term are written as soon as the term leaves the heap of source
+     * heads.
+     *
+     * @param sources
+     * @return Manifest entry of the segment
+     * @throws IOException
+     */
+    private Segments.Entry writeSegment(List<? extends PostingsSource> sources) throws IOException {
+        DocumentStats stats = new DocumentStats(new File(segmentDir, Segment.DOCUMENT_STATS_FILE));
+        Segments.Entry segment = new Segments.Entry(segmentDir.getName(), stats.getDocumentCount(), stats.getMinDocid(), stats.getMaxDocid());
+        indexSize = stats.getDocumentCount();
+        bm25 = new Bm25(stats);
+        fieldFreqs = new int[stats.getFields()];
+        finalIndexSizes.clear();
+        PriorityQueue<PostingsSource> heads = new PriorityQueue<>(Math.max(1, sources.size()),
+                (PostingsSource r1, PostingsSource r2) -> r1.getTerm().compareTo(r2.getTerm()));
+        List<PostingsList> termPostings = new ArrayList<>();
+        PostingsSource head;
+        String term;
 
+        for (PostingsSource br : sources) {
+            advance(br, heads);
         }
-        writeDictionaryToFinalIndex(currentTerms, true);
-    }
 
-    private String[] chopTermOfArray(String[] termsArray, String term) {
-        List<String> newArray = new ArrayList<>(Arrays.asList(termsArray));
-        newArray.remove(term);
-        return newArray.toArray(new String[0]);
-    }
+        lexicon = new LexiconWriter(new File(segmentDir, Segment.LEXICON_FILE).getPath());
+        finalIndexWriters = new WriterPool();
+        try {
+            while (!heads.isEmpty()) {
+                head = heads.poll();
+                term = head.getTerm();
+                termPostings.clear();
+                termPostings.add(head.getPostings());
+                advance(head, heads);
+
+                while (!heads.isEmpty() && heads.peek().getTerm().equals(term)) {
+                    head = heads.poll();
+                    termPostings.add(head.getPostings());
+                    advance(head, heads);
+                }
 
-    private int getTermFreq(String postingsString) {
-        Indexer i = new Indexer();
-        return postingsString.split(i.termDelimiter).length;
+                PostingsList postings = PostingsList.merge(termPostings);
+                if (postings.size() > 0) {                                      //unless only deleted documents have the term
+                    writeTermToFinalIndex(term, postings);
+                }
+            }
+        } finally {
+            finalIndexWriters.close();
+            lexicon.close();
+            stats.close();
+            for (PostingsSource br : heads) {
+                br.close();
+            }
+        }
+        return segment;
     }
 
     /**
+     * Read the next term of a source; the source goes back to the heap unless
+     * it is exhausted, in which case it is closed
      *
-     *
-     * @param termFreq - Num of documents where the term is
-     * @return
+     * @param br
+     * @param heads
      * @throws IOException
      */
-    private double calculateTermIDF(String postingsString) {
-        return Math.log10(indexSize / getTermFreq(postingsString));
+    private void advance(PostingsSource br, PriorityQueue<PostingsSource> heads) throws IOException {
+        if (br.next()) {
+            heads.add(br);
+        } else {
+            br.close();
+        }
+    }
+
+    /**
+     * Cosine idf of a term; the retrieval computes it with the same formula
+     * over the number of documents and the df of every segment
+     *
+     * @param nDocuments
+     * @param df
+     * @return idf
+     */
+    public static double idf(long nDocuments, int df) {
+        return Math.log10((double) nDocuments / df);
+    }
+
+    private static float upperBound(double value) {
+        float upperBound = (float) value;
+        return upperBound < value ? Math.nextUp(upperBound) : upperBound;
     }
 
     /**
@@ -0,0 +1,326 @@
+package indexer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * In-memory SPIMI block: terms are interned to int ids in an open addressing
+ * table and each id owns a primitive PostingsList (docid, one quantized
+ * weight byte and the field term frequencies per posting). Terms of a
+ * document are found on the tokenized line itself, so known terms cost no
+ * String. A positional block also keeps the ordinal position of every term
+ * occurrence (the n-th term of the document is at position n), with a gap
+ * of PostingsCodec.FIELD_POSITION_GAP positions at each field boundary.
+ *
+ * @author Rui Frazão
+ * @author Fábio Ferreira
+ */
+public class PostingsBlock {
+
+    private static final int TERM_OVERHEAD = 120;                              //String, table slots and list headers
+
+    private String[] terms = new String[1024];
+    private PostingsList[] postings = new PostingsList[1024];
+    private int[] table = new int[2048];                                        //term id + 1; 0 is empty
+    private int nTerms = 0;
+    private long postingBytes = 0;
+    private long termBytes = 0;
+
+    private final ByteArrayOutputStream documentStats = new ByteArrayOutputStream();
+    private final boolean positional;
+
+    //per document scratch, indexed by term id
+    private int[] termLocal = new int[1024];                                   //index of the term in the document
+    private int[] termStamp = new int[1024];
+    private int[] docTerms = new int[256];
+    private int[] fieldFreq = new int[512];                                     //document terms x fields
+    private int[] fieldLengths = new int[4];
+    private int[] occurrences = new int[256];                                   //document term of each occurrence
+    private int[] occurrencePositions = new int[256];
+    private int[] positions = new int[256];                                     //positions grouped by document term
+    private int[] positionStarts = new int[256];
+    private int stamp = 0;
+
+    public PostingsBlock() {
+        this(false);
+    }
+
+    /**
+     * @param positional - Keep the positions of the terms
+     */
+    public PostingsBlock(boolean positional) {
+        this.positional = positional;
+    }
+
+    /**
+     * Add the terms of a tokenized "docid TAB field TAB field ..." line, where
+     * the terms of a field are separated by spaces, with their normalized TF
+     * weight and their frequency in each field; the document statistics are
+     * kept for DocumentStatsWriter
+     *
+     * @param line
+     * @return docid of the document
+     */
+    public int addDocument(String line) {
+        int tab = line.indexOf('\t');
+        int docid = Integer.parseInt(line.substring(0, tab));
+        int nDocTerms = 0, nFields = 1, field = 0, lastField = 0, nPositions = 0, position = 0, start, id, tf, i, n = line.length();
+        char ch;
+        for (i = tab + 1; i < n; i++) {
+            if (line.charAt(i) == '\t') {
+                nFields++;
+            }
+        }
+        if (fieldLengths.length < nFields) {
+            fieldLengths = new int[nFields];
+        }
+        Arrays.fill(fieldLengths, 0, nFields, 0);
+        stamp++;
+
+        i = tab + 1;
+        while (i < n) {
+            ch = line.charAt(i);
+            if (ch == '\t') {
+                field++;
+                position += PostingsCodec.FIELD_POSITION_GAP;                   //no phrase or window spans two fields
+                i++;
+                continue;
+            }
+            if (Character.isWhitespace(ch)) {
+                i++;
+                continue;
+            }
+            start = i;
+            while (i < n && !Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+
+            id = termId(line, start, i);
+            if (termStamp[id] != stamp) {
+                termStamp[id] = stamp;
+                termLocal[id] = nDocTerms;
+                if (nDocTerms == docTerms.length) {
+                    docTerms = Arrays.copyOf(docTerms, nDocTerms * 2);
+                }
+                if ((nDocTerms + 1) * nFields > fieldFreq.length) {
+                    fieldFreq = Arrays.copyOf(fieldFreq, Math.max(fieldFreq.length * 2, (nDocTerms + 1) * nFields));
+                }
+                Arrays.fill(fieldFreq, nDocTerms * nFields, (nDocTerms + 1) * nFields, 0);
+                docTerms[nDocTerms++] = id;
+            }
+            fieldFreq[termLocal[id] * nFields + field]++;
+            fieldLengths[field]++;
+            lastField = field;
+            if (positional) {
+                if (nPositions == occurrences.length) {
+                    occurrences = Arrays.copyOf(occurrences, nPositions * 2);
+                    occurrencePositions = Arrays.copyOf(occurrencePositions, nPositions * 2);
+                }
+                occurrences[nPositions] = termLocal[id];
+                occurrencePositions[nPositions++] = position++;
+            }
+        }
+        if (positional) {
+            groupPositions(nDocTerms, nFields, nPositions);
+        }
+
+        double squareSum = 0, weight;
+        for (int t = 0; t < nDocTerms; t++) {
+            weight = calculateTF(termFrequency(t, nFields));
+            squareSum += weight * weight;
+        }
+        double docNorm = Math.sqrt(squareSum);
+
+        for (int t = 0; t < nDocTerms; t++) {
+            id = docTerms[t];
+            tf = termFrequency(t, nFields);
+            PostingsList list = postings[id];
+            postingBytes -= list.estimatedBytes();
+            if (positional) {
+                list.add(docid, calculateTF(tf) / docNorm, fieldFreq, t * nFields, lastField + 1, positions, positionStarts[t], tf);
+            } else {
+                list.add(docid, calculateTF(tf) / docNorm, fieldFreq, t * nFields, lastField + 1);
+            }
+            postingBytes += list.estimatedBytes();
+        }
+        DocumentStatsWriter.addDocument(documentStats, docid, fieldLengths, lastField + 1, docNorm);
+        return docid;
+    }
+
+    /**
+     * Group the positions of the document by term: the positions of the t-th
+     * term of the document start at positionStarts[t], in ascending order
+     *
+     * @param nDocTerms
+     * @param nFields
+     * @param nPositions
+     */
+    private void groupPositions(int nDocTerms, int nFields, int nPositions) {
+        if (nDocTerms + 1 > positionStarts.length) {
+            positionStarts = new int[Math.max(nDocTerms + 1, positionStarts.length * 2)];
+        }
+        if (nPositions > positions.length) {
+            positions = new int[Math.max(nPositions, positions.length * 2)];
+        }
+        positionStarts[0] = 0;
+        for (int t = 0; t < nDocTerms; t++) {
+            positionStarts[t + 1] = positionStarts[t] + termFrequency(t, nFields);
+        }
+        for (int p = 0; p < nPositions; p++) {
+            positions[positionStarts[occurrences[p]]++] = occurrencePositions[p]; //moves each start to the next term's
+        }
+        for (int t = nDocTerms; t > 0; t--) {
+            positionStarts[t] = positionStarts[t - 1];
+        }
+        positionStarts[0] = 0;
+    }
+
+    private int termFrequency(int local, int nFields) {
+        int tf = 0;
+        for (int f = local * nFields, end = f + nFields; f < end; f++) {
+            tf += fieldFreq[f];
+        }
+        return tf;
+    }
+
+    /**
+     * Calculates Term Frequency weight of a term in a document
+     *
+     * @param termFreq
+     * @return Term Frequency Weight
+     */
+    private static double calculateTF(int termFreq) {
+        return 1 + Math.log10(termFreq);
+    }
+
+    /**
+     * Id of line[start, end), added to the block if new
+     *
+     * @param line
+     * @param start
+     * @param end
+     * @return Term id
+     */
+    private int termId(String line, int start, int end) {
+        int length = end - start, h = 0, slot, id;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + line.charAt(i);
+        }
+        slot = (h ^ (h >>> 16)) & (table.length - 1);
+
+        while ((id = table[slot] - 1) >= 0) {
+            String term = terms[id];
+            if (term.length() == length && term.regionMatches(0, line, start, length)) {
+                return id;
+            }
+            slot = (slot + 1) & (table.length - 1);
+        }
+
+        id = nTerms++;
+        if (id == terms.length) {
+            terms = Arrays.copyOf(terms, id * 2);
+            postings = Arrays.copyOf(postings, id * 2);
+            termLocal = Arrays.copyOf(termLocal, id * 2);
+            termStamp = Arrays.copyOf(termStamp, id * 2);
+        }
+        terms[id] = line.substring(start, end);
+        postings[id] = new PostingsList(2, 1, positional);
+        table[slot] = id + 1;
+        termBytes += TERM_OVERHEAD + 2L * length;
+        postingBytes += postings[id].estimatedBytes();
+
+        if (nTerms * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return id;
+    }
+
+    private void rehash(int capacity) {
+        int[] newTable = new int[capacity];
+        int slot, h;
+        for (int id = 0; id < nTerms; id++) {
+            h = terms[id].hashCode();
+            slot = (h ^ (h >>> 16)) & (capacity - 1);
+            while (newTable[slot] != 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            newTable[slot] = id + 1;
+        }
+        table = newTable;
+    }
+
+    public int size() {
+        return nTerms;
+    }
+
+    public boolean isEmpty() {
+        return nTerms == 0 && documentStats.size() == 0;
+    }
+
+    /**
+     * Approximate heap bytes used by the terms and postings of the block
+     *
+     * @return Bytes
+     */
+    public long estimatedBytes() {
+        return termBytes + postingBytes + 4L * table.length + documentStats.size();
+    }
+
+    /**
+     * Term ids ordered by term
+     *
+     * @return Sorted term ids
+     */
+    public int[] sortedTermIds() {
+        Integer[] ids = new Integer[nTerms];
+        for (int id = 0; id < nTerms; id++) {
+            ids[id] = id;
+        }
+        Arrays.sort(ids, (Integer id1, Integer id2) -> terms[id1].compareTo(terms[id2]));
+        int[] sorted = new int[nTerms];
+        for (int i = 0; i < nTerms; i++) {
+            sorted[i] = ids[i];
+        }
+        return sorted;
+    }
+
+    /**
+     * Statistics records of the documents of the block
+     *
+     * @return Encoded records
+     */
+    public byte[] getDocumentStats() {
+        return documentStats.toByteArray();
+    }
+
+    public String getTerm(int id) {
+        return terms[id];
+    }
+
+    /**
+     * Postings of a term, sorted by docid
+     *
+     * @param id
+     * @return Postings list
+     */
+    public PostingsList getPostings(int id) {
+        postings[id].sortByDocid();
+        return postings[id];
+    }
+
+    /**
+     * Empty the block, keeping its arrays for the next one
+     */
+    public void clear() {
+        Arrays.fill(terms, 0, nTerms, null);
+        Arrays.fill(postings, 0, nTerms, null);
+        Arrays.fill(table, 0);
+        Arrays.fill(termStamp, 0, nTerms, 0);
+        documentStats.reset();
+        nTerms = 0;
+        stamp = 0;
+        termBytes = 0;
+        postingBytes = 0;
+    }
+
+}
@@ -0,0 +1,211 @@
+package indexer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary encoding of the postings lists written to the index files.
+ *
+ * A record is the term (modified UTF-8), the payload length and the payload.
+ * The payload holds the number of postings, the number of fields and the
+ * flags (POSITIONS) followed by blocks of up to BLOCK_SIZE postings. Each
+ * block starts with the gap to its last docid and its length in bytes, so it
+ * can be skipped without decoding, then the variable-byte docid gaps, one
+ * quantized weight byte per posting, the variable-byte term frequency of
+ * each field per posting and, in positional payloads, the variable-byte
+ * position gaps of each posting (as many as its term frequency).
+ *
+ * Positions count the terms of the whole document, but each field after the
+ * first starts FIELD_POSITION_GAP positions after the end of the previous
+ * one, so a phrase or a proximity window of up to FIELD_POSITION_GAP terms
+ * never matches across a field boundary (e.g. the end of the title and the
+ * start of the body).
+ *
+ * @author Rui Frazão
+ * @author Fábio Ferreira
+ */
+public final class PostingsCodec {
+
+    public static final int BLOCK_SIZE = 128;
+    public static final int POSITIONS = 1;
+    public static final int FIELD_POSITION_GAP = 1000;
+    private static final int QUANTIZATION_LEVELS = 255;
+
+    private PostingsCodec() {
+    }
+
+    /**
+     * Quantize a normalized weight (0 to 1) to a single byte
+     *
+     * @param weight
+     * @return Quantized weight
+     */
+    public static byte quantize(double weight) {
+        if (weight <= 0) {
+            return 0;
+        }
+        if (weight >= 1) {
+            return (byte) QUANTIZATION_LEVELS;
+        }
+        return (byte) Math.round(weight * QUANTIZATION_LEVELS);
+    }
+
+    public static double dequantize(byte weight) {
+        return (double) (weight & 0xFF) / QUANTIZATION_LEVELS;
+    }
+
+    /**
+     * Encode a full index record (term, payload length, payload)
+     *
+     * @param term
+     * @param postings
+     * @return Encoded record
+     */
+    public static byte[] encodeRecord(String term, PostingsList postings) {
+        return encodeRecord(term, encode(postings));
+    }
+
+    public static byte[] encodeRecord(String term, byte[] payload) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(payload.length + term.length() + 8);
+        try {
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeUTF(term);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Term can not be encoded: " + term, e);
+        }
+        writeVByte(bos, payload.length);
+        bos.write(payload, 0, payload.length);
+        return bos.toByteArray();
+    }
+
+    /**
+     * Encode a postings list sorted by docid
+     *
+     * @param postings
+     * @return Encoded payload
+     */
+    public static byte[] encode(PostingsList postings) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        int size = postings.size(), previousLast = 0, previous;
+        byte[] blockBytes;
+
+        writeVByte(out, size);
+        writeVByte(out, postings.getFields());
+        writeVByte(out, postings.isPositional() ? POSITIONS : 0);
+        for (int start = 0; start < size; start += BLOCK_SIZE) {
+            int end = Math.min(start + BLOCK_SIZE, size);
+            block.reset();
+            previous = previousLast;
+            for (int i = start; i < end; i++) {
+                writeVByte(block, postings.getDocid(i) - previous);
+                previous = postings.getDocid(i);
+            }
+            for (int i = start; i < end; i++) {
+                block.write(postings.getQuantizedWeight(i));
+            }
+            for (int i = start; i < end; i++) {
+                for (int f = 0; f < postings.getFields(); f++) {
+                    writeVByte(block, postings.getTermFrequency(i, f));
+                }
+            }
+            if (postings.isPositional()) {
+                for (int i = start; i < end; i++) {
+                    int position = 0;
+                    for (int p = 0; p < postings.getPositionCount(i); p++) {
+                        writeVByte(block, postings.getPosition(i, p) - position);
+                        position = postings.getPosition(i, p);
+                    }
+                }
+            }
+            blockBytes = block.toByteArray();
+            writeVByte(out, previous - previousLast);
+            writeVByte(out, blockBytes.length);
+            out.write(blockBytes, 0, blockBytes.length);
+            previousLast = previous;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a payload created by encode
+     *
+     * @param payload
+     * @return Postings list sorted by docid
+     */
+    public static PostingsList decode(ByteBuffer payload) {
+        int size = readVByte(payload), fields = readVByte(payload), docid = 0, n, tf, position;
+        boolean positional = (readVByte(payload) & POSITIONS) != 0;
+        int[] blockDocids = new int[BLOCK_SIZE], blockFreqs = new int[BLOCK_SIZE * fields], positions = new int[16];
+        byte[] blockWeights = new byte[BLOCK_SIZE];
+        PostingsList postings = new PostingsList(size, fields, positional);
+
+        for (int start = 0; start < size; start += BLOCK_SIZE) {
+            n = Math.min(BLOCK_SIZE, size - start);
+            readVByte(payload);                                                 //last docid gap, only needed to skip
+            readVByte(payload);                                                 //block length
+            for (int i = 0; i < n; i++) {
+                docid += readVByte(payload);
+                blockDocids[i] = docid;
+            }
+            payload.get(blockWeights, 0, n);
+            for (int i = 0; i < n * fields; i++) {
+                blockFreqs[i] = readVByte(payload);
+            }
+            for (int i = 0; i < n; i++) {
+                if (!positional) {
+                    postings.add(blockDocids[i], blockWeights[i], blockFreqs, i * fields, fields);
+                    continue;
+                }
+                tf = 0;
+                for (int f = 0; f < fields; f++) {
+                    tf += blockFreqs[i * fields + f];
+                }
+                if (tf > positions.length) {
+                    positions = new int[Math.max(tf, positions.length * 2)];
+                }
+                position = 0;
+                for (int p = 0; p < tf; p++) {
+                    position += readVByte(payload);
+                    positions[p] = position;
+                }
+                postings.add(blockDocids[i], blockWeights[i], blockFreqs, i * fields, fields, positions, 0, tf);
+            }
+        }
+        return postings;
+    }
+
+    public static void writeVByte(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    public static int readVByte(ByteBuffer in) {
+        int value = 0, shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    public static int readVByte(DataInput in) throws IOException {
+        int value = 0, shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+}
@@ -0,0 +1,273 @@
+package indexer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Forward cursor over an encoded postings payload (see PostingsCodec).
+ *
+ * Blocks are decoded only when the cursor stops inside them; advance skips
+ * whole blocks whose last docid is smaller than the target using the block
+ * headers. Term frequencies are decoded when first read in a block and
+ * positions only for the postings whose positions are read.
+ *
+ * @author Rui Frazão
+ * @author Fábio Ferreira
+ */
+public class PostingsCursor {
+
+    public static final int END = Integer.MAX_VALUE;
+
+    private final ByteBuffer payload;
+    private final int size;
+    private final int fields;
+    private final boolean positional;
+    private final int[] docids = new int[PostingsCodec.BLOCK_SIZE];
+    private final byte[] weights = new byte[PostingsCodec.BLOCK_SIZE];
+    private final int[] termFreqs;
+
+    private int remaining;
+    private int blockBase;
+    private int blockLast;
+    private int blockStart;
+    private int blockLength;
+    private int blockSize;
+    private int index;
+    private boolean decoded;
+    private boolean freqsDecoded;
+    private int freqsStart;
+    private int positionsStart;
+    private int[] positions = new int[16];
+    private int positionsIndex;                                                 //posting at positionsOffset
+    private int positionsOffset;
+    private int positionsDecoded = -1;                                          //posting held by positions
+
+    public PostingsCursor(ByteBuffer payload) {
+        this.payload = payload;
+        this.size = PostingsCodec.readVByte(payload);
+        this.fields = PostingsCodec.readVByte(payload);
+        this.positional = (PostingsCodec.readVByte(payload) & PostingsCodec.POSITIONS) != 0;
+        this.termFreqs = new int[PostingsCodec.BLOCK_SIZE * fields];
+        this.remaining = size;
+        this.blockLast = 0;
+        readBlockHeader();
+    }
+
+    /**
+     * Cursor over an empty postings list, for a term missing from a segment
+     *
+     * @return Exhausted cursor
+     */
+    public static PostingsCursor empty() {
+        return new PostingsCursor(ByteBuffer.wrap(PostingsCodec.encode(new PostingsList())));
+    }
+
+    /**
+     * Number of postings of the list
+     *
+     * @return Document frequency
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Current docid
+     *
+     * @return docid; END if the cursor is exhausted
+     */
+    public int docid() {
+        if (blockSize == 0) {
+            return END;
+        }
+        decodeBlock();
+        return docids[index];
+    }
+
+    public double weight() {
+        decodeBlock();
+        return PostingsCodec.dequantize(weights[index]);
+    }
+
+    /**
+     * Number of fields of the term frequencies
+     *
+     * @return Fields
+     */
+    public int fields() {
+        return fields;
+    }
+
+    /**
+     * Term frequency of the current posting in the whole document
+     *
+     * @return Term frequency
+     */
+    public int tf() {
+        decodeTermFrequencies();
+        return termFrequency(index);
+    }
+
+    /**
+     * Copy the field term frequencies of the current posting
+     *
+     * @param fieldFreqs - Receives the frequency of each field
+     * @return Number of fields copied
+     */
+    public int fieldFrequencies(int[] fieldFreqs) {
+        decodeTermFrequencies();
+        int n = Math.min(fields, fieldFreqs.length);
+        System.arraycopy(termFreqs, index * fields, fieldFreqs, 0, n);
+        return n;
+    }
+
+    public boolean hasPositions() {
+        return positional;
+    }
+
+    /**
+     * Positions of the term in the current document; only the first tf()
+     * values are valid, until the cursor moves
+     *
+     * @return Ascending ordinal positions
+     */
+    public int[] positions() {
+        if (!positional) {
+            throw new IllegalStateException("The postings have no positions");
+        }
+        decodeTermFrequencies();
+        if (positionsDecoded == index) {
+            return positions;
+        }
+        if (positionsIndex > index) {
+            positionsIndex = 0;
+            positionsOffset = positionsStart;
+        }
+        for (; positionsIndex < index; positionsIndex++) {                      //skip the positions of earlier postings
+            positionsOffset = skipVBytes(positionsOffset, termFrequency(positionsIndex));
+        }
+
+        int tf = termFrequency(index), position = 0;
+        if (tf > positions.length) {
+            positions = new int[Math.max(tf, positions.length * 2)];
+        }
+        payload.position(positionsOffset);
+        for (int p = 0; p < tf; p++) {
+            position += PostingsCodec.readVByte(payload);
+            positions[p] = position;
+        }
+        positionsOffset = payload.position();
+        positionsIndex = index + 1;
+        positionsDecoded = index;
+        return positions;
+    }
+
+    /**
+     * Offset after n variable-byte values
+     *
+     * @param offset
+     * @param n
+     * @return Offset of the next value
+     */
+    private int skipVBytes(int offset, int n) {
+        while (n > 0) {
+            if ((payload.get(offset++) & 0x80) == 0) {
+                n--;
+            }
+        }
+        return offset;
+    }
+
+    private int termFrequency(int posting) {
+        int tf = 0;
+        for (int f = posting * fields, end = f + fields; f < end; f++) {
+            tf += termFreqs[f];
+        }
+        return tf;
+    }
+
+    /**
+     * Move to the next posting
+     */
+    public void next() {
+        if (blockSize == 0) {
+            return;
+        }
+        if (++index == blockSize) {
+            nextBlock();
+        }
+    }
+
+    /**
+     * Move to the first posting with docid greater or equal than target
+     *
+     * @param target
+     */
+    public void advance(int target) {
+        while (blockSize != 0 && blockLast < target) {
+            nextBlock();
+        }
+        if (blockSize == 0) {
+            return;
+        }
+        decodeBlock();
+        while (docids[index] < target) {
+            index++;
+        }
+    }
+
+    private void nextBlock() {
+        payload.position(blockStart + blockLength);
+        readBlockHeader();
+    }
+
+    private void readBlockHeader() {
+        blockBase = blockLast;
+        index = 0;
+        decoded = false;
+        freqsDecoded = false;
+        positionsDecoded = -1;
+        if (remaining == 0) {
+            blockSize = 0;
+            return;
+        }
+        blockSize = Math.min(PostingsCodec.BLOCK_SIZE, remaining);
+        remaining -= blockSize;
+        blockLast = blockBase + PostingsCodec.readVByte(payload);
+        blockLength = PostingsCodec.readVByte(payload);
+        blockStart = payload.position();
+    }
+
+    private void decodeBlock() {
+        if (decoded) {
+            return;
+        }
+        payload.position(blockStart);
+        int docid = blockBase;
+        for (int i = 0; i < blockSize; i++) {
+            docid += PostingsCodec.readVByte(payload);
+            docids[i] = docid;
+        }
+        payload.get(weights, 0, blockSize);
+        freqsStart = payload.position();
+        decoded = true;
+    }
+
+    /**
+     * Term frequencies are only decoded for the blocks where they are read
+     */
+    private void decodeTermFrequencies() {
+        if (freqsDecoded) {
+            return;
+        }
+        decodeBlock();
+        payload.position(freqsStart);
+        for (int i = 0, n = blockSize * fields; i < n; i++) {
+            termFreqs[i] = PostingsCodec.readVByte(payload);
+        }
+        positionsStart = payload.position();
+        positionsIndex = 0;
+        positionsOffset = positionsStart;
+        freqsDecoded = true;
+    }
+
+}
@@ -0,0 +1,387 @@
+package indexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Growable list of postings (docid, quantized weight and the term frequency
+ * in each field of the document), sorted by docid. A positional list also
+ * keeps the ordinal positions of the term in each document.
+ *
+ * @author Rui Frazão
+ * @author Fábio Ferreira
+ */
+public class PostingsList {
+
+    private int[] docids;
+    private byte[] weights;
+    private int[] termFreqs;                                                    //fields per posting
+    private int fields;
+    private int[] positions;                                                    //null if not positional
+    private int[] positionStarts;                                               //size + 1 offsets in positions
+    private int size;
+
+    public PostingsList() {
+        this(8);
+    }
+
+    public PostingsList(int capacity) {
+        this(capacity, 1);
+    }
+
+    public PostingsList(int capacity, int fields) {
+        this(capacity, fields, false);
+    }
+
+    public PostingsList(int capacity, int fields, boolean positional) {
+        capacity = Math.max(capacity, 1);
+        this.fields = Math.max(fields, 1);
+        this.docids = new int[capacity];
+        this.weights = new byte[capacity];
+        this.termFreqs = new int[capacity * this.fields];
+        if (positional) {
+            this.positions = new int[capacity];
+            this.positionStarts = new int[capacity + 1];
+        }
+    }
+
+    /**
+     * Append a posting; docids must be added in ascending order
+     *
+     * @param docid
+     * @param weight
+     * @param fieldFreqs - Term frequency in each field of the document
+     * @param offset - Index of the first field in fieldFreqs
+     * @param nFields - Number of fields in fieldFreqs
+     */
+    public void add(int docid, double weight, int[] fieldFreqs, int offset, int nFields) {
+        add(docid, PostingsCodec.quantize(weight), fieldFreqs, offset, nFields);
+    }
+
+    public void add(int docid, byte weight, int[] fieldFreqs, int offset, int nFields) {
+        add(docid, weight, fieldFreqs, offset, nFields, null, 0, 0);
+    }
+
+    /**
+     * Append a posting of a positional list; docids must be added in
+     * ascending order
+     *
+     * @param docid
+     * @param weight
+     * @param fieldFreqs - Term frequency in each field of the document
+     * @param offset - Index of the first field in fieldFreqs
+     * @param nFields - Number of fields in fieldFreqs
+     * @param termPositions - Ascending positions of the term in the document
+     * @param positionOffset - Index of the first position in termPositions
+     * @param nPositions - Number of positions
+     */
+    public void add(int docid, double weight, int[] fieldFreqs, int offset, int nFields, int[] termPositions, int positionOffset, int nPositions) {
+        add(docid, PostingsCodec.quantize(weight), fieldFreqs, offset, nFields, termPositions, positionOffset, nPositions);
+    }
+
+    public void add(int docid, byte weight, int[] fieldFreqs, int offset, int nFields, int[] termPositions, int positionOffset, int nPositions) {
+        if (nFields > fields) {
+            widen(nFields);
+        }
+        if (size == docids.length) {
+            int capacity = docids.length + (docids.length >> 1) + 1;
+            docids = Arrays.copyOf(docids, capacity);
+            weights = Arrays.copyOf(weights, capacity);
+            termFreqs = Arrays.copyOf(termFreqs, capacity * fields);
+            if (positions != null) {
+                positionStarts = Arrays.copyOf(positionStarts, capacity + 1);
+            }
+        }
+        docids[size] = docid;
+        weights[size] = weight;
+        System.arraycopy(fieldFreqs, offset, termFreqs, size * fields, nFields);
+        if (positions != null) {
+            int start = positionStarts[size];
+            if (start + nPositions > positions.length) {
+                positions = Arrays.copyOf(positions, Math.max(positions.length + (positions.length >> 1), start + nPositions));
+            }
+            if (nPositions > 0) {
+                System.arraycopy(termPositions, positionOffset, positions, start, nPositions);
+            }
+            positionStarts[size + 1] = start + nPositions;
+        }
+        size++;
+    }
+
+    /**
+     * Keep more fields per posting; the new fields of the existing postings
+     * are 0
+     *
+     * @param nFields
+     */
+    private void widen(int nFields) {
+        int[] widened = new int[docids.length * nFields];
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(termFreqs, i * fields, widened, i * nFields, fields);
+        }
+        termFreqs = widened;
+        fields = nFields;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getDocid(int index) {
+        return docids[index];
+    }
+
+    public byte getQuantizedWeight(int index) {
+        return weights[index];
+    }
+
+    public double getWeight(int index) {
+        return PostingsCodec.dequantize(weights[index]);
+    }
+
+    public boolean isPositional() {
+        return positions != null;
+    }
+
+    /**
+     * Number of positions of a posting
+     *
+     * @param index
+     * @return Positions of the term in the document
+     */
+    public int getPositionCount(int index) {
+        return positionStarts[index + 1] - positionStarts[index];
+    }
+
+    public int getPosition(int index, int position) {
+        return positions[positionStarts[index] + position];
+    }
+
+    /**
+     * Number of fields kept per posting
+     *
+     * @return Fields
+     */
+    public int getFields() {
+        return fields;
+    }
+
+    /**
+     * Term frequency in the whole document
+     *
+     * @param index
+     * @return Term frequency
+     */
+    public int getTermFrequency(int index) {
+        int tf = 0;
+        for (int f = 0; f < fields; f++) {
+            tf += termFreqs[index * fields + f];
+        }
+        return tf;
+    }
+
+    /**
+     * Term frequency in one field of the document
+     *
+     * @param index
+     * @param field
+     * @return Term frequency; 0 if the posting has no such field
+     */
+    public int getTermFrequency(int index, int field) {
+        return field < fields ? termFreqs[index * fields + field] : 0;
+    }
+
+    /**
+     * Copy the field term frequencies of a posting
+     *
+     * @param index
+     * @param fieldFreqs - Receives the frequency of each field
+     * @return Number of fields copied
+     */
+    public int getFieldFrequencies(int index, int[] fieldFreqs) {
+        int n = Math.min(fields, fieldFreqs.length);
+        System.arraycopy(termFreqs, index * fields, fieldFreqs, 0, n);
+        return n;
+    }
+
+    /**
+     * Sort the postings by docid, for lists that were appended out of order;
+     * if a docid repeats the last added posting is kept
+     */
+    public void sortByDocid() {
+        int i = 1;
+        while (i < size && docids[i - 1] < docids[i]) {
+            i++;
+        }
+        if (i >= size) {
+            return;
+        }
+
+        long[] keys = new long[size];
+        for (i = 0; i < size; i++) {
+            keys[i] = ((long) docids[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        int[] sortedDocids = new int[size];
+        byte[] sortedWeights = new byte[size];
+        int[] sortedFreqs = new int[size * fields];
+        int[] sortedPositions = positions == null ? null : new int[positionStarts[size]];
+        int[] sortedStarts = positions == null ? null : new int[size + 1];
+        int n = 0, from;
+        for (i = 0; i < size; i++) {
+            if (i + 1 < size && (keys[i + 1] >>> 32) == (keys[i] >>> 32)) {
+                continue;                                                       //a later posting of the same docid
+            }
+            from = (int) keys[i];
+            sortedDocids[n] = (int) (keys[i] >>> 32);
+            sortedWeights[n] = weights[from];
+            System.arraycopy(termFreqs, from * fields, sortedFreqs, n * fields, fields);
+            if (positions != null) {
+                sortedStarts[n + 1] = sortedStarts[n] + getPositionCount(from);
+                System.arraycopy(positions, positionStarts[from], sortedPositions, sortedStarts[n], getPositionCount(from));
+            }
+            n++;
+        }
+        docids = sortedDocids;
+        weights = sortedWeights;
+        termFreqs = sortedFreqs;
+        positions = sortedPositions;
+        positionStarts = sortedStarts;
+        size = n;
+    }
+
+    /**
+     * Approximate heap bytes used by the list
+     *
+     * @return Bytes
+     */
+    public long estimatedBytes() {
+        long bytes = 96 + (5L + 4L * fields) * docids.length;
+        if (positions != null) {
+            bytes += 4L * positions.length + 4L * positionStarts.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Merge several postings lists by docid. Lists covering disjoint docid
+     * ranges, as written by a sequential indexer, are concatenated; otherwise
+     * they are merged pairwise. The merged list is positional only if every
+     * list is.
+     *
+     * @param lists
+     * @return Merged postings list
+     */
+    public static PostingsList merge(List<PostingsList> lists) {
+        if (lists.size() == 1) {
+            return lists.get(0);
+        }
+        List<PostingsList> sorted = new ArrayList<>(lists);
+        sorted.removeIf((PostingsList p) -> p.size == 0);
+        if (sorted.isEmpty()) {
+            return new PostingsList();
+        }
+        sorted.sort((PostingsList p1, PostingsList p2) -> Integer.compare(p1.docids[0], p2.docids[0]));
+
+        boolean disjoint = true, positional = sorted.get(0).isPositional();
+        int total = sorted.get(0).size, fields = sorted.get(0).fields;
+        for (int l = 1; l < sorted.size(); l++) {
+            disjoint &= sorted.get(l - 1).docids[sorted.get(l - 1).size - 1] < sorted.get(l).docids[0];
+            total += sorted.get(l).size;
+            fields = Math.max(fields, sorted.get(l).fields);
+            positional &= sorted.get(l).isPositional();
+        }
+
+        if (disjoint) {
+            PostingsList merged = new PostingsList(total, fields, positional);
+            for (PostingsList p : sorted) {
+                if (p.fields == fields && !positional) {
+                    System.arraycopy(p.docids, 0, merged.docids, merged.size, p.size);
+                    System.arraycopy(p.weights, 0, merged.weights, merged.size, p.size);
+                    System.arraycopy(p.termFreqs, 0, merged.termFreqs, merged.size * fields, p.size * fields);
+                    merged.size += p.size;
+                } else {
+                    for (int i = 0; i < p.size; i++) {
+                        merged.add(p, i);
+                    }
+                }
+            }
+            return merged;
+        }
+
+        while (sorted.size() > 1) {
+            List<PostingsList> next = new ArrayList<>((sorted.size() + 1) / 2);
+            for (int l = 0; l < sorted.size(); l += 2) {
+                next.add(l + 1 < sorted.size() ? merge(sorted.get(l), sorted.get(l + 1)) : sorted.get(l));
+            }
+            sorted = next;
+        }
+        return sorted.get(0);
+    }
+
+    /**
+     * Merge two postings lists by docid; if both hold the same docid the
+     * posting of the second list is kept
+     *
+     * @param first
+     * @param second
+     * @return Merged postings list
+     */
+    public static PostingsList merge(PostingsList first, PostingsList second) {
+        PostingsList merged = new PostingsList(first.size + second.size, Math.max(first.fields, second.fields),
+                first.isPositional() && second.isPositional());
+        int i = 0, j = 0;
+        while (i < first.size && j < second.size) {
+            if (first.docids[i] < second.docids[j]) {
+                merged.add(first, i++);
+            } else {
+                if (first.docids[i] == second.docids[j]) {
+                    i++;
+                }
+                merged.add(second, j++);
+            }
+        }
+        while (i < first.size) {
+            merged.add(first, i++);
+        }
+        while (j < second.size) {
+            merged.add(second, j++);
+        }
+        return merged;
+    }
+
+    /**
+     * Copy of the list without the postings of some documents
+     *
+     * @param docids - Documents to drop
+     * @return Postings list; this list if it has none of the documents
+     */
+    public PostingsList withoutDocuments(CompressedBitmap docids) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            kept += docids.contains(this.docids[i]) ? 0 : 1;
+        }
+        if (kept == size) {
+            return this;
+        }
+        PostingsList list = new PostingsList(kept, fields, isPositional());
+        for (int i = 0; i < size; i++) {
+            if (!docids.contains(this.docids[i])) {
+                list.add(this, i);
+            }
+        }
+        return list;
+    }
+
+    private void add(PostingsList from, int index) {
+        if (from.positions == null) {
+            add(from.docids[index], from.weights[index], from.termFreqs, index * from.fields, from.fields);
+        } else {
+            add(from.docids[index], from.weights[index], from.termFreqs, index * from.fields, from.fields,
+                    from.positions, from.positionStarts[index], from.getPositionCount(index));
+        }
+    }
+
+}
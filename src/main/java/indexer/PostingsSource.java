@@ -0,0 +1,27 @@
+package indexer;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sequence of terms in ascending order with their postings, the input of a
+ * merge: the binary parts of the indexer or the lexicon of a segment
+ *
+ * @author Rui Frazão
+ * @author Fábio Ferreira
+ */
+public interface PostingsSource extends Closeable {
+
+    /**
+     * Move to the next term
+     *
+     * @return false if there are no more terms
+     * @throws IOException
+     */
+    boolean next() throws IOException;
+
+    String getTerm();
+
+    PostingsList getPostings() throws IOException;
+
+}
@@ -0,0 +1,178 @@
+package indexer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read access to a published segment: its lexicon, its document statistics
+ * and the postings payloads. Safe to share between threads; payloads are
+ * read with positioned reads of postings files opened once. Segments are
+ * opened by the index snapshots; while open, a segment holds a shared lock
+ * on its lock file, so another process does not reclaim its files.
+ *
+ * @author Rui Frazão
+ * @author Fábio Ferreira
+ */
+public class Segment implements Closeable {
+
+    public static final String LEXICON_FILE = "lexicon.lex";
+    public static final String DOCUMENT_STATS_FILE = "documents.dst";
+    public static final String LOCK_FILE = "segment.lock";
+
+    private final String name;
+    private final File directory;
+    private final Lexicon lexicon;
+    private final DocumentStats documentStats;
+    private final Map<String, RandomAccessFile> filesRead = new ConcurrentHashMap<>();
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+
+    /**
+     * Open a published segment
+     *
+     * @param directory
+     * @throws IOException
+     */
+    Segment(File directory) throws IOException {
+        this.name = directory.getName();
+        this.directory = directory;
+        if (!directory.isDirectory()) {
+            throw new FileNotFoundException("Segment " + directory + " was removed");
+        }
+        this.lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+        this.lock = sharedLock(lockFile);
+        try {
+            this.lexicon = new Lexicon(new File(directory, LEXICON_FILE));
+            this.documentStats = new DocumentStats(new File(directory, DOCUMENT_STATS_FILE));
+        } catch (IOException e) {
+            lockFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Shared lock of the lock file; null if this process already holds a
+     * lock of it, which keeps the files from other processes as well
+     *
+     * @param lockFile
+     * @return Lock
+     * @throws IOException
+     */
+    private static FileLock sharedLock(RandomAccessFile lockFile) throws IOException {
+        try {
+            return lockFile.getChannel().lock(0, Long.MAX_VALUE, true);
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Lexicon getLexicon() {
+        return lexicon;
+    }
+
+    public DocumentStats getDocumentStats() {
+        return documentStats;
+    }
+
+    /**
+     * Read the postings payload of a lexicon entry of this segment
+     *
+     * @param entry
+     * @return Payload
+     * @throws IOException
+     */
+    public byte[] readPayload(Lexicon.Entry entry) throws IOException {
+        RandomAccessFile postingsFile = getPostingsFile(entry.getFile());
+
+        ByteBuffer payload = ByteBuffer.allocate(entry.getLength());
+        while (payload.hasRemaining()) {
+            if (postingsFile.getChannel().read(payload, entry.getOffset() + payload.position()) < 0) {
+                throw new IOException("Unexpected end of file " + name + "/" + entry.getFile());
+            }
+        }
+        return payload.array();
+    }
+
+    /**
+     * Postings file opened once and shared by every thread
+     *
+     * @param filename
+     * @return Postings file
+     * @throws IOException
+     */
+    private RandomAccessFile getPostingsFile(String filename) throws IOException {
+        RandomAccessFile postingsFile = filesRead.get(filename);
+        if (postingsFile == null) {
+            RandomAccessFile opened = new RandomAccessFile(new File(directory, filename), "r");
+            postingsFile = filesRead.putIfAbsent(filename, opened);
+            if (postingsFile == null) {
+                postingsFile = opened;
+            } else {
+                opened.close();
+            }
+        }
+        return postingsFile;
+    }
+
+    /**
+     * Terms of the segment in lexicon order with their postings, for merging
+     * the segment into a larger one; the postings of the deleted documents
+     * are dropped
+     *
+     * @param deleted - Deleted documents, e.g. of an index snapshot
+     * @return Postings source; closing it does not close the segment
+     */
+    public PostingsSource terms(CompressedBitmap deleted) {
+        return new PostingsSource() {
+            private int index = -1;
+            private Lexicon.Entry entry;
+
+            @Override
+            public boolean next() {
+                entry = ++index < lexicon.size() ? lexicon.getEntry(index) : null;
+                return entry != null;
+            }
+
+            @Override
+            public String getTerm() {
+                return entry.getTerm();
+            }
+
+            @Override
+            public PostingsList getPostings() throws IOException {
+                PostingsList postings = PostingsCodec.decode(ByteBuffer.wrap(readPayload(entry)));
+                return deleted.isEmpty() ? postings : postings.withoutDocuments(deleted);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (RandomAccessFile postingsFile : filesRead.values()) {
+            postingsFile.close();
+        }
+        lexicon.close();
+        documentStats.close();
+        if (lock != null) {
+            lock.release();
+        }
+        lockFile.close();
+    }
+
+}
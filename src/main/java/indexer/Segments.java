@@ -0,0 +1,576 @@
+package indexer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Manifest of the segments of the index.
+ *
+ * Each segment is an immutable index in its own directory (postings files,
+ * lexicon and document statistics); the manifest starts with a "generation
+ * TAB generation TAB last segment number" line and lists the published
+ * segments, one "name TAB documents TAB first docid TAB last docid TAB
+ * deletes generation TAB deleted documents" line each. A new manifest is
+ * written to a temporary file and moved over the old one with the next
+ * generation, so readers see either the old or the new generation.
+ *
+ * Readers search an IndexSnapshot of a generation. Segments that are no
+ * longer published, e.g. replaced by a merge or by a new full index, are
+ * reclaimed by the instance that updates the index once no snapshot of it
+ * uses them and no other process has them open; segment numbers are never
+ * reused.
+ *
+ * Deleted documents are the only change to a published segment: they are
+ * kept in a compressed bitmap per segment, written to a new deletes file of
+ * the segment at each change and published with the manifest. Queries skip
+ * them and merges drop their postings.
+ *
+ * Changes are serialized within a process; a single process should update
+ * the index at a time.
+ *
+ * @author Rui Frazão
+ * @author Fábio Ferreira
+ */
+public class Segments {
+
+    public static final String DEFAULT_PATH = "segments/";
+    private static final String MANIFEST = "segments.lst";
+    private static final String SEGMENT_PREFIX = "segment";
+    private static final String GENERATION = "generation";
+    private static final String DELETES_PREFIX = "deletes_", DELETES_EXTENSION = ".del";
+    private static final int SNAPSHOT_ATTEMPTS = 3;
+
+    private final File directory;
+    private volatile long generation = 0;
+    private int lastSegment = 0;
+    private boolean writer = false;
+    private final Set<String> published = new HashSet<>();
+    private final Set<String> unpublished = new HashSet<>();                  //created, not published yet
+    private final Map<String, Segment> opened = new HashMap<>();
+    private final Map<String, Integer> references = new HashMap<>();
+
+    public Segments() {
+        this(DEFAULT_PATH);
+    }
+
+    public Segments(String path) {
+        this.directory = new File(path);
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public File getSegmentDirectory(String name) {
+        return new File(directory, name);
+    }
+
+    /**
+     * Latest generation of the manifest this instance published or read,
+     * for readers in the same process to notice changes without reading
+     * the manifest
+     *
+     * @return Generation; 0 before the first manifest
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Published segments, oldest first
+     *
+     * @return Segments of the manifest; empty if there is no index
+     * @throws IOException
+     */
+    public synchronized List<Entry> read() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        File manifest = new File(directory, MANIFEST);
+        if (!manifest.exists()) {
+            return entries;
+        }
+        try (BufferedReader br = new BufferedReader(new FileReader(manifest))) {
+            String line;
+            String[] columns;
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith(GENERATION + "\t")) {
+                    columns = line.split("\t");
+                    generation = Long.parseLong(columns[1]);
+                    lastSegment = Math.max(lastSegment, Integer.parseInt(columns[2]));
+                } else if (!line.trim().isEmpty()) {
+                    entries.add(Entry.parse(line));
+                }
+            }
+        }
+        published.clear();
+        for (Entry entry : entries) {
+            published.add(entry.getName());
+        }
+        return entries;
+    }
+
+    /**
+     * Open the current generation of the index. Segments open in another
+     * snapshot of this instance are shared, not opened again.
+     *
+     * @return Snapshot with one reference, to be released with decRef or
+     * close
+     * @throws IOException
+     */
+    public synchronized IndexSnapshot acquire() throws IOException {
+        for (int attempt = 1;; attempt++) {
+            List<Entry> entries = read();
+            List<Segment> segments = new ArrayList<>(entries.size());
+            List<CompressedBitmap> deletes = new ArrayList<>(entries.size());
+            try {
+                for (Entry entry : entries) {
+                    deletes.add(readDeletes(entry));
+                    segments.add(open(entry.getName()));
+                }
+                return new IndexSnapshot(this, generation, entries, segments, deletes);
+            } catch (FileNotFoundException e) {
+                release(segments);
+                if (attempt == SNAPSHOT_ATTEMPTS) {                             //another process kept replacing it
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Give back the segments of a snapshot whose last reference was
+     * released, and reclaim the unpublished ones nobody uses
+     *
+     * @param snapshot
+     * @throws IOException
+     */
+    synchronized void release(IndexSnapshot snapshot) throws IOException {
+        release(snapshot.getSegments());
+    }
+
+    private Segment open(String name) throws IOException {
+        Segment segment = opened.get(name);
+        if (segment == null) {
+            segment = new Segment(getSegmentDirectory(name));
+            opened.put(name, segment);
+        }
+        references.merge(name, 1, Integer::sum);
+        return segment;
+    }
+
+    private void release(List<Segment> segments) throws IOException {
+        IOException failure = null;
+        for (Segment segment : segments) {
+            if (references.merge(segment.getName(), -1, Integer::sum) == 0) {
+                references.remove(segment.getName());
+                opened.remove(segment.getName());
+                try {
+                    segment.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        reclaim();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Create the directory of a new segment, numbered after the last
+     * segment created in this index
+     *
+     * @return Empty segment directory
+     * @throws IOException
+     */
+    public synchronized File createSegmentDirectory() throws IOException {
+        read();
+        for (File file : segmentDirectories()) {
+            lastSegment = Math.max(lastSegment, Integer.parseInt(file.getName().substring(SEGMENT_PREFIX.length())));
+        }
+        File segment = new File(directory, SEGMENT_PREFIX + (++lastSegment));
+        if (!segment.mkdir()) {
+            throw new IOException("Can not create segment directory " + segment);
+        }
+        unpublished.add(segment.getName());
+        writer = true;
+        return segment;
+    }
+
+    private File[] segmentDirectories() {
+        File[] files = directory.listFiles((file) -> file.isDirectory() && file.getName().matches(SEGMENT_PREFIX + "\\d+"));
+        return files == null ? new File[0] : files;
+    }
+
+    /**
+     * First docid not used by any segment
+     *
+     * @return Next docid
+     * @throws IOException
+     */
+    public synchronized int nextDocid() throws IOException {
+        int next = 1;
+        for (Entry entry : read()) {
+            next = Math.max(next, entry.getMaxDocid() + 1);
+        }
+        return next;
+    }
+
+    /**
+     * Publish a new segment next to the existing ones
+     *
+     * @param added
+     * @throws IOException
+     */
+    public synchronized void add(Entry added) throws IOException {
+        add(added, new int[0]);
+    }
+
+    /**
+     * Publish a new segment that replaces documents of the existing ones:
+     * the replaced docids are deleted from the existing segments in the same
+     * manifest
+     *
+     * @param added
+     * @param replacedDocids
+     * @throws IOException
+     */
+    public synchronized void add(Entry added, int[] replacedDocids) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : read()) {
+            entries.add(deleteDocuments(entry, replacedDocids));
+        }
+        entries.add(added);
+        write(entries);
+    }
+
+    /**
+     * Delete documents from every segment that has them
+     *
+     * @param docids
+     * @return Number of deleted documents
+     * @throws IOException
+     */
+    public synchronized int delete(int... docids) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        int deleted = 0;
+        for (Entry entry : read()) {
+            Entry updated = deleteDocuments(entry, docids);
+            deleted += updated.getDeleted() - entry.getDeleted();
+            entries.add(updated);
+        }
+        if (deleted > 0) {
+            write(entries);
+        }
+        return deleted;
+    }
+
+    /**
+     * Publish the segment created by a merge in place of the merged ones,
+     * which are reclaimed once they are not used. Documents deleted from
+     * the merged segments while they were merged are deleted from the new
+     * segment.
+     *
+     * The merge is stale if a merged segment left the manifest meanwhile
+     * (e.g. the index was rebuilt by replaceAll); nothing is published then
+     * and the new segment is reclaimed.
+     *
+     * @param removed - Entries of the merged segments
+     * @param mergedDeletes - Deleted documents of each merged segment when it
+     * was merged
+     * @param added - null if every document of the merged segments was
+     * deleted
+     * @return false if the merge was stale and must be planned again
+     * @throws IOException
+     */
+    public synchronized boolean replace(List<Entry> removed, List<CompressedBitmap> mergedDeletes, Entry added) throws IOException {
+        List<Entry> current = read(), entries = new ArrayList<>();
+        List<Integer> deletedSince = new ArrayList<>();
+        int position = -1, index;
+        for (Entry entry : removed) {
+            if (indexOf(current, entry.getName()) < 0) {
+                if (added != null) {
+                    unpublished.remove(added.getName());
+                    reclaim();
+                }
+                return false;
+            }
+        }
+        for (Entry entry : current) {
+            index = indexOf(removed, entry.getName());
+            if (index < 0) {
+                entries.add(entry);
+                continue;
+            }
+            position = position < 0 ? entries.size() : position;
+            if (added != null && entry.getDeletesGeneration() != removed.get(index).getDeletesGeneration()) {
+                for (int docid : readDeletes(entry).toArray()) {
+                    if (!mergedDeletes.get(index).contains(docid)) {
+                        deletedSince.add(docid);
+                    }
+                }
+            }
+        }
+        int[] docids = new int[deletedSince.size()];
+        for (int d = 0; d < docids.length; d++) {
+            docids[d] = deletedSince.get(d);
+        }
+        if (added != null) {
+            entries.add(position, deleteDocuments(added, docids));
+        }
+        write(entries);
+        return true;
+    }
+
+    /**
+     * Deleted documents of a segment
+     *
+     * @param entry
+     * @return Bitmap of docids; empty if no document was deleted
+     * @throws IOException
+     */
+    private CompressedBitmap readDeletes(Entry entry) throws IOException {
+        if (entry.getDeletesGeneration() == 0) {
+            return new CompressedBitmap();
+        }
+        File file = new File(getSegmentDirectory(entry.getName()), DELETES_PREFIX + entry.getDeletesGeneration() + DELETES_EXTENSION);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return CompressedBitmap.read(in);
+        }
+    }
+
+    /**
+     * Add the docids the segment has to its deleted documents and write them
+     * as the next deletes generation of the segment; the deletes file before
+     * the current one is removed
+     *
+     * @param entry
+     * @param docids
+     * @return Entry of the segment with the new deletes; the same entry if
+     * it has none of the docids
+     * @throws IOException
+     */
+    private Entry deleteDocuments(Entry entry, int[] docids) throws IOException {
+        CompressedBitmap deletes = null;
+        File segment = getSegmentDirectory(entry.getName());
+        try (DocumentStats stats = new DocumentStats(new File(segment, Segment.DOCUMENT_STATS_FILE))) {
+            for (int docid : docids) {
+                if (!stats.contains(docid)) {
+                    continue;                                                   //not in the segment
+                }
+                if (deletes == null) {
+                    deletes = readDeletes(entry);
+                }
+                deletes.add(docid);
+            }
+        }
+        if (deletes == null || deletes.cardinality() == entry.getDeleted()) {
+            return entry;
+        }
+
+        int generation = entry.getDeletesGeneration() + 1;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(segment, DELETES_PREFIX + generation + DELETES_EXTENSION))))) {
+            deletes.write(out);
+        }
+        new File(segment, DELETES_PREFIX + (generation - 2) + DELETES_EXTENSION).delete();
+        return new Entry(entry.getName(), entry.getDocuments(), entry.getMinDocid(), entry.getMaxDocid(), generation, deletes.cardinality());
+    }
+
+    /**
+     * Publish a segment as the whole index, e.g. after a full build; every
+     * other segment is reclaimed once it is not used
+     *
+     * @param segment
+     * @throws IOException
+     */
+    public synchronized void replaceAll(Entry segment) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        entries.add(segment);
+        write(entries);
+    }
+
+    private static int indexOf(List<Entry> entries, String name) {
+        for (int e = 0; e < entries.size(); e++) {
+            if (entries.get(e).getName().equals(name)) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Publish the next generation of the manifest, then reclaim the segments
+     * it does not have
+     *
+     * @param entries
+     * @throws IOException
+     */
+    private void write(List<Entry> entries) throws IOException {
+        File temporary = new File(directory, MANIFEST + ".tmp");
+        try (PrintWriter out = new PrintWriter(temporary)) {
+            out.println(GENERATION + "\t" + (generation + 1) + "\t" + lastSegment);
+            for (Entry entry : entries) {
+                out.println(entry);
+            }
+            if (out.checkError()) {
+                throw new IOException("Can not write the segments manifest " + temporary);
+            }
+        }
+        Files.move(temporary.toPath(), new File(directory, MANIFEST).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        generation++;
+        writer = true;
+        published.clear();
+        for (Entry entry : entries) {
+            published.add(entry.getName());
+            unpublished.remove(entry.getName());
+        }
+        reclaim();
+    }
+
+    /**
+     * Delete the segment directories that are not published, not being
+     * created and not open in this instance or in another process; only the
+     * instance that updates the index knows which ones are being created
+     */
+    private void reclaim() {
+        if (!writer) {
+            return;
+        }
+        for (File segment : segmentDirectories()) {
+            String name = segment.getName();
+            if (!published.contains(name) && !unpublished.contains(name) && !references.containsKey(name)) {
+                deleteSegment(segment);
+            }
+        }
+    }
+
+    /**
+     * Delete the files of a segment while holding the exclusive lock of its
+     * lock file
+     *
+     * @param segment
+     */
+    private static void deleteSegment(File segment) {
+        File lockFile = new File(segment, Segment.LOCK_FILE);
+        try (RandomAccessFile lockAccess = new RandomAccessFile(lockFile, "rw")) {
+            FileLock lock = lockAccess.getChannel().tryLock();
+            if (lock == null) {
+                return;                                                         //open in another process
+            }
+            try {
+                File[] files = segment.listFiles();
+                for (File file : files == null ? new File[0] : files) {
+                    if (!file.equals(lockFile)) {
+                        file.delete();
+                    }
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (OverlappingFileLockException | IOException e) {
+            return;                                                             //open in this process; retried later
+        }
+        lockFile.delete();
+        segment.delete();
+    }
+
+    /**
+     * Manifest line of a segment
+     */
+    public static class Entry {
+
+        private final String name;
+        private final int documents;
+        private final int minDocid;
+        private final int maxDocid;
+        private final int deletesGeneration;
+        private final int deleted;
+
+        public Entry(String name, int documents, int minDocid, int maxDocid) {
+            this(name, documents, minDocid, maxDocid, 0, 0);
+        }
+
+        public Entry(String name, int documents, int minDocid, int maxDocid, int deletesGeneration, int deleted) {
+            this.name = name;
+            this.documents = documents;
+            this.minDocid = minDocid;
+            this.maxDocid = maxDocid;
+            this.deletesGeneration = deletesGeneration;
+            this.deleted = deleted;
+        }
+
+        static Entry parse(String line) {
+            String[] columns = line.split("\t");
+            if (columns.length < 6) {
+                return new Entry(columns[0], Integer.parseInt(columns[1]), Integer.parseInt(columns[2]), Integer.parseInt(columns[3]));
+            }
+            return new Entry(columns[0], Integer.parseInt(columns[1]), Integer.parseInt(columns[2]), Integer.parseInt(columns[3]),
+                    Integer.parseInt(columns[4]), Integer.parseInt(columns[5]));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getDocuments() {
+            return documents;
+        }
+
+        public int getMinDocid() {
+            return minDocid;
+        }
+
+        public int getMaxDocid() {
+            return maxDocid;
+        }
+
+        /**
+         * Version of the deleted documents of the segment
+         *
+         * @return Generation; 0 if no document was deleted
+         */
+        public int getDeletesGeneration() {
+            return deletesGeneration;
+        }
+
+        public int getDeleted() {
+            return deleted;
+        }
+
+        public int getLiveDocuments() {
+            return documents - deleted;
+        }
+
+        @Override
+        public String toString() {
+            return name + "\t" + documents + "\t" + minDocid + "\t" + maxDocid + "\t" + deletesGeneration + "\t" + deleted;
+        }
+    }
+
+}
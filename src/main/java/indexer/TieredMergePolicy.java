@@ -0,0 +1,87 @@
+package indexer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chooses the segments to merge so that the index keeps a logarithmic
+ * number of segments as documents are added.
+ *
+ * Segments are grouped in levels by size: level 0 holds the segments with
+ * less than minSegmentDocuments * mergeFactor documents and each next level
+ * holds segments mergeFactor times larger. When a level has mergeFactor
+ * segments they are merged into one segment of a higher level, so every
+ * document is merged about once per level. A segment with more deleted than
+ * live documents is merged alone, which drops the deleted ones.
+ *
+ * @author Fábio Ferreira
+ * @author Rui Frazão
+ */
+public class TieredMergePolicy {
+
+    public static final int DEFAULT_MERGE_FACTOR = 4;
+    public static final int DEFAULT_MIN_SEGMENT_DOCUMENTS = 1000;
+
+    private final int mergeFactor;
+    private final int minSegmentDocuments;
+
+    public TieredMergePolicy() {
+        this(DEFAULT_MERGE_FACTOR, DEFAULT_MIN_SEGMENT_DOCUMENTS);
+    }
+
+    /**
+     * @param mergeFactor - Number of segments of a level merged at once, at
+     * least 2
+     * @param minSegmentDocuments - Size of the segments of the lowest level
+     */
+    public TieredMergePolicy(int mergeFactor, int minSegmentDocuments) {
+        this.mergeFactor = Math.max(2, mergeFactor);
+        this.minSegmentDocuments = Math.max(1, minSegmentDocuments);
+    }
+
+    /**
+     * Level of a segment: the number of times minSegmentDocuments can be
+     * multiplied by mergeFactor without exceeding its number of live
+     * documents
+     *
+     * @param segment
+     * @return Level
+     */
+    public int level(Segments.Entry segment) {
+        int level = 0;
+        for (long size = (long) minSegmentDocuments * mergeFactor; segment.getLiveDocuments() >= size; size *= mergeFactor) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Next merge: a segment that is mostly deleted documents, otherwise the
+     * oldest mergeFactor segments of the lowest level that has that many
+     *
+     * @param segments - Published segments, oldest first
+     * @return Segments to merge; null if no merge is needed
+     */
+    public List<Segments.Entry> findMerge(List<Segments.Entry> segments) {
+        List<Segments.Entry> merge = new ArrayList<>(mergeFactor);
+        for (Segments.Entry segment : segments) {
+            if (segment.getDeleted() > segment.getLiveDocuments()) {
+                merge.add(segment);
+                return merge;
+            }
+        }
+        for (int level = 0; level < 32; level++) {
+            merge.clear();
+            for (Segments.Entry segment : segments) {
+                if (level(segment) == level) {
+                    merge.add(segment);
+                    if (merge.size() == mergeFactor) {
+                        return merge;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+}
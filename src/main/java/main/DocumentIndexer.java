@@ -1,15 +1,22 @@
 package main;
 
+import indexer.IncrementalIndexer;
 import indexer.Indexer;
+import indexer.IndexerPosition;
 import indexer.Merger;
-import java.io.File;
+import indexer.Segments;
+import java.io.BufferedReader;
 import java.io.IOException;
-import javax.xml.parsers.ParserConfigurationException;
-import org.xml.sax.SAXException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.List;
 import retrieval.Evaluation;
+import retrieval.QueryServer;
 import retrieval.RankedRetrieval;
+import retrieval.ScoringModel;
 import text_corpus.CorpusReader;
 import text_corpus.XMLCorpusReader;
+import text_operations.StemCache;
 import tokenizer.ImprovedTokenizer;
 import tokenizer.SimpleTokenizer;
 
@@ -21,7 +28,7 @@ import tokenizer.SimpleTokenizer;
  */
 public class DocumentIndexer {
 
-    public DocumentIndexer(String[] args) throws IOException, ParserConfigurationException, SAXException {
+    public DocumentIndexer(String[] args) throws IOException {
         long initTime = System.currentTimeMillis(), endTime;
         switch (args[0]) {
             case "-h":
@@ -30,10 +37,15 @@ public class DocumentIndexer {
                 System.out.println("  -c,  --corpusreader \tParse a document using the Corpus Reader.");
                 System.out.println("  -t,  --tokenizer \tTokenize a document using a simple tokenizer (text to lowercase, alphanumeric characters removal) or an improved tokenizer (stopword removal, stemming, acceptance of alphanumeric characters).");
                 System.out.println("  -i,  --indexer \tCreate a document inverted index.");
+                System.out.println("  -p,  --positionalindexer\tCreate a document inverted index with term positions, for \"phrase\" and \"proximity\"~N searches.");
                 System.out.println("  -m,  --merge \t\tMerge indexer files in a final inverted index structure.");
-//                System.out.println("  -f, --fullindex \t Execute the full indexer pipeline.");
+                System.out.println("  -f,  --fullindex \tRead, tokenize and index a corpus in one streaming pass (no intermediate files), then merge.");
+                System.out.println("  -a,  --add \t\tAdd the documents of a corpus to the index as a new segment; small segments are merged in the background.");
+                System.out.println("  -u,  --update \t\tReplace the indexed documents with the same docids by the documents of a corpus (DOCNO, or numbered from a given docid for --tsv).");
+                System.out.println("  -d,  --delete \t\tDelete documents from the index by docid; they are skipped by searches at once and dropped by the next merge of their segment.");
                 System.out.println("  -s,  --search \tSearch query in documents.");
-                System.out.println("  -e,  --evaluation\tEvaluation and efficiency metrics (Cranfield example).");
+                System.out.println("  -S,  --serve \t\tLoad the index once and answer queries from stdin or a local port.");
+                System.out.println("  -e,  --evaluation\tEvaluation and efficiency metrics of each scoring model (Cranfield example).");
 
                 break;
             case "-c":
@@ -98,23 +110,39 @@ public class DocumentIndexer {
                 break;
             case "-i":
             case "--indexer":
+            case "-p":
+            case "--positionalindexer":
                 if (args.length < 3) {
-                    System.out.println("> Invalid Syntax. Use DocumentIndexer " + args[0] + " <input file path> <merge?> <OPT:indexfilenamesize>");
+                    System.out.println("> Invalid Syntax. Use DocumentIndexer " + args[0] + " <input file path> <merge?> <OPT:indexfilenamesize> <OPT:threads> <OPT:memory budget MB>");
                     break;
                 } // <output directory>
                 String iInputfile = args[1];
                 boolean merge = Boolean.valueOf(args[2]);
                 int filenameSize = 3; //default
-                if (args.length==4){
+                if (args.length >= 4){
                     filenameSize = Integer.parseInt(args[3]);
                 }
+                int nThreads = 1; //default
+                if (args.length >= 5){
+                    nThreads = Integer.parseInt(args[4]);
+                }
+                
+                long memoryBudget = -1; //default: share of the max heap
+                if (args.length >= 6){
+                    memoryBudget = Long.parseLong(args[5]) * 1024 * 1024;
+                }
                 
                 if (filenameSize < 1 || filenameSize > 3) {
                     System.out.println("Please use a file name size between 1 and 3");
                     break;
                 }
 
-                executeIndexer(iInputfile, merge, filenameSize);
+                if (nThreads < 1) {
+                    System.out.println("Please use at least 1 indexing thread");
+                    break;
+                }
+
+                executeIndexer(iInputfile, merge, filenameSize, nThreads, memoryBudget, args[0].equals("-p") || args[0].equals("--positionalindexer"));
 
                 endTime = System.currentTimeMillis();
                 System.out.println("Total time: " + (endTime - initTime) / 1000 + "seg");
@@ -134,68 +162,142 @@ public class DocumentIndexer {
                 executeMerge(filenameSizem);
                 
                 break;
-//            case "-f":
-//            case "--fullindex":
-//                if (args.length < 6) {//<output file name> 
-//                    System.out.println("> Invalid Syntax. Use DocumentIndexer " + args[0] + " <input file path> -cols col1 col2 (...) coln");
-//                    break;
-//                }
-//
-//                if (!args[2].equalsIgnoreCase("-cols")) {
-//                    System.out.println("Please use the -cols flag to indicate which columns to keep. Use * for every column");
-//                    break;
-//                }
-//                boolean tokenSpecFound = false;
-//                int pos = -1;
-//                for (int i = 1; i < args.length; i++) {
-//                    if (args[i].equalsIgnoreCase("-t")) {
-//                        tokenSpecFound = true;
-//                        pos = i;
-//                    }
-//                }
-//                if (!tokenSpecFound) {
-//                    System.out.println("==Tokenizer Not Specified - Using ImprovedTokenizer==");
-//                }
-////                if (!args[pos+1].equalsIgnoreCase("simple") && !args[pos+1].equalsIgnoreCase("improved")){ System.out.println("Please use tokenizer type 'simple' or 'improved'"); break; }
-//
-//                String input = args[1];
-////                String output = args[2];
-//                String[] columns;
-//                if (args[args.length - 1].equalsIgnoreCase("simple")) {
-//                    tokenSpecFound = false;
-//                }
-//
-//                if (tokenSpecFound) {
-//                    columns = new String[args.length - 6];
-//                } else {
-//                    columns = new String[args.length - 4];
-//                }
-//
-//                for (int i = 4; i < args.length; i++) {
-//                    columns[i - 4] = args[i];
-//                }
-//
-//                executeFullIndexer(input, columns, tokenSpecFound);
-//
-//                endTime = System.currentTimeMillis();
-//                System.out.println("Total time: " + (endTime - initTime) / 1000 + "seg");
-//                break;
+            case "-f":
+            case "--fullindex":
+                if (args.length < 5) {
+                    System.out.println("> Invalid Syntax. Use DocumentIndexer " + args[0] + " --<input file format> <input file path> <OPT:threads> -cols col1 col2 (...) coln");
+                    break;
+                }
+                int fColsFlag = args[3].equalsIgnoreCase("-cols") ? 3 : 4;
+                if (fColsFlag >= args.length || !args[fColsFlag].equalsIgnoreCase("-cols")) {
+                    System.out.println("Please use the -cols flag to indicate which columns to keep.");
+                    break;
+                }
+                if (!args[1].equalsIgnoreCase("--tsv") && !args[1].equalsIgnoreCase("--xml")) {
+                    System.out.println("Please use input file format --tsv or --xml");
+                    break;
+                }
+                int fThreads = Runtime.getRuntime().availableProcessors(); //default
+                if (fColsFlag == 4) {
+                    fThreads = Integer.parseInt(args[3]);
+                }
+                String[] fColumns = new String[args.length - fColsFlag - 1];
+                for (int i = fColsFlag + 1; i < args.length; i++) {
+                    fColumns[i - fColsFlag - 1] = args[i];
+                }
+
+                executeFullIndexer(args[1].equalsIgnoreCase("--xml"), args[2], fColumns, fThreads);
+
+                endTime = System.currentTimeMillis();
+                System.out.println("Total time: " + (endTime - initTime) / 1000 + "seg");
+                break;
+            case "-a":
+            case "--add":
+                if (args.length < 5) {
+                    System.out.println("> Invalid Syntax. Use DocumentIndexer " + args[0] + " --<input file format> <input file path> <OPT:threads> -cols col1 col2 (...) coln");
+                    break;
+                }
+                int aColsFlag = args[3].equalsIgnoreCase("-cols") ? 3 : 4;
+                if (aColsFlag >= args.length || !args[aColsFlag].equalsIgnoreCase("-cols")) {
+                    System.out.println("Please use the -cols flag to indicate which columns to keep.");
+                    break;
+                }
+                if (!args[1].equalsIgnoreCase("--tsv") && !args[1].equalsIgnoreCase("--xml")) {
+                    System.out.println("Please use input file format --tsv or --xml");
+                    break;
+                }
+                int aThreads = Runtime.getRuntime().availableProcessors(); //default
+                if (aColsFlag == 4) {
+                    aThreads = Integer.parseInt(args[3]);
+                }
+                String[] aColumns = new String[args.length - aColsFlag - 1];
+                for (int i = aColsFlag + 1; i < args.length; i++) {
+                    aColumns[i - aColsFlag - 1] = args[i];
+                }
+
+                try {
+                    executeAdd(args[1].equalsIgnoreCase("--xml"), args[2], false, -1, aColumns, aThreads);
+                }
+                catch(IllegalArgumentException e) {
+                    System.out.println("> " + e.getMessage());
+                }
+
+                endTime = System.currentTimeMillis();
+                System.out.println("Total time: " + (endTime - initTime) / 1000 + "seg");
+                break;
+            case "-u":
+            case "--update":
+                if (args.length < 5 || (!args[1].equalsIgnoreCase("--tsv") && !args[1].equalsIgnoreCase("--xml"))) {
+                    System.out.println("> Invalid Syntax. Use DocumentIndexer " + args[0] + " --xml <input file path> <OPT:threads> -cols col1 col2 (...) coln");
+                    System.out.println("> or DocumentIndexer " + args[0] + " --tsv <input file path> <first docid> <OPT:threads> -cols col1 col2 (...) coln");
+                    break;
+                }
+                boolean uXml = args[1].equalsIgnoreCase("--xml");
+                int uFirst = uXml ? 3 : 4;
+                int uColsFlag = uFirst < args.length && args[uFirst].equalsIgnoreCase("-cols") ? uFirst : uFirst + 1;
+                if (uColsFlag >= args.length || !args[uColsFlag].equalsIgnoreCase("-cols")) {
+                    System.out.println("Please use the -cols flag to indicate which columns to keep.");
+                    break;
+                }
+                int uThreads = Runtime.getRuntime().availableProcessors(); //default
+                if (uColsFlag == uFirst + 1) {
+                    uThreads = Integer.parseInt(args[uFirst]);
+                }
+                String[] uColumns = new String[args.length - uColsFlag - 1];
+                for (int i = uColsFlag + 1; i < args.length; i++) {
+                    uColumns[i - uColsFlag - 1] = args[i];
+                }
+
+                executeAdd(uXml, args[2], true, uXml ? -1 : Integer.parseInt(args[3]), uColumns, uThreads);
+
+                endTime = System.currentTimeMillis();
+                System.out.println("Total time: " + (endTime - initTime) / 1000 + "seg");
+                break;
+            case "-d":
+            case "--delete":
+                if (args.length < 2) {
+                    System.out.println("> Invalid Syntax. Use DocumentIndexer " + args[0] + " <docid> <docid> (...)");
+                    break;
+                }
+                int[] docids = new int[args.length - 1];
+                for (int i = 1; i < args.length; i++) {
+                    docids[i - 1] = Integer.parseInt(args[i]);
+                }
+
+                executeDelete(docids);
+                break;
             case "-s":
             case "--search":
                 if (args.length < 3) {//<output file name> 
-                    System.out.println("> Invalid Syntax. Use DocumentIndexer " + args[0] + " \"<query>\" <number of results>");
+                    System.out.println("> Invalid Syntax. Use DocumentIndexer " + args[0] + " \"<query>\" <number of results> <OPT:cosine|bm25|bm25f>");
                     break;
                 }
                 try {
-                    executeSearch(args[1], Integer.parseInt(args[2])); 
+                    executeSearch(args[1], Integer.parseInt(args[2]), args.length >= 4 ? ScoringModel.parse(args[3]) : ScoringModel.COSINE); 
                 }
-                catch(NullPointerException e) {
-                    System.out.println("The search did not match any documents.");
+                catch(IllegalArgumentException e) {
+                    System.out.println("> " + e.getMessage());
                 }
                 
                 endTime = System.currentTimeMillis();
                 System.out.println("Total time: " + (endTime - initTime) / 1000 + "seg");
                 break;
+            case "-S":
+            case "--serve":
+                if (args.length < 2) {
+                    System.out.println("> Invalid Syntax. Use DocumentIndexer " + args[0] + " <number of results> <OPT:port> <OPT:threads>");
+                    break;
+                }
+                int sPort = -1, sThreads = 4; //default: stdin
+                if (args.length >= 3) {
+                    sPort = Integer.parseInt(args[2]);
+                }
+                if (args.length >= 4) {
+                    sThreads = Integer.parseInt(args[3]);
+                }
+
+                executeServe(Integer.parseInt(args[1]), sPort, sThreads);
+                break;
             case "-e":
             case "--evaluation":
                 if (args.length < 2) {//<output file name> 
@@ -218,12 +320,12 @@ public class DocumentIndexer {
         }
     }
 
-    private void executeCorpusReader(String inputFile, String outputFile, String[] columns) {
+    private void executeCorpusReader(String inputFile, String outputFile, String[] columns) throws IOException {
         CorpusReader cr = new CorpusReader();
         cr.corpusReader(inputFile, outputFile, columns);
     }
     
-    private void executeXMLCorpusReader(String inputPath, String outputFile, String[] columns) throws ParserConfigurationException, SAXException, IOException {
+    private void executeXMLCorpusReader(String inputPath, String outputFile, String[] columns) throws IOException {
         XMLCorpusReader cr = new XMLCorpusReader();
         cr.corpusReader(inputPath, outputFile, columns);
     }
@@ -236,6 +338,7 @@ public class DocumentIndexer {
     private void executeImprovedTokenizer(String inputFile, String outputFile, boolean keepDigits, boolean isFirstLineHeader) throws IOException {
         ImprovedTokenizer it = new ImprovedTokenizer();
         it.improvedTokenization(inputFile, outputFile, keepDigits, isFirstLineHeader);
+        System.out.println(StemCache.shared());
     }
 
     private void executeIndexer(String inputfile, boolean merge) throws IOException {
@@ -243,18 +346,19 @@ public class DocumentIndexer {
         i.SPIMIInvert(inputfile);
 //        MemoryManager mm = new MemoryManager();
 //        System.out.println("MEMORY: "+mm.getUsedMemory());
-        System.gc();
         if(merge){
             executeMerge();
         }
     }
     
-    private void executeIndexer(String inputfile, boolean merge, int filenameSize) throws IOException {
-        Indexer i = new Indexer(true);
-        i.SPIMIInvert(inputfile);
+    private void executeIndexer(String inputfile, boolean merge, int filenameSize, int nThreads, long memoryBudget, boolean positional) throws IOException {
+        Indexer i = positional ? new IndexerPosition(true) : new Indexer(true);
+        if (memoryBudget > 0) {
+            i.setMemoryBudget(memoryBudget);
+        }
+        i.SPIMIInvert(inputfile, nThreads);
 //        MemoryManager mm = new MemoryManager();
 //        System.out.println("MEMORY: "+mm.getUsedMemory());
-        System.gc();
         if(merge){
             executeMerge(filenameSize);
         }
@@ -270,45 +374,97 @@ public class DocumentIndexer {
         m.createFinalIndex();
     }
 
-    private void executeFullIndexer(String input, String[] columns, boolean useSimpleTokenizer) throws IOException {
-        String corpusPath = "corpus.tsv";
-        String tokenized = "tokenization.tsv";
+    private void executeFullIndexer(boolean xml, String input, String[] columns, int nThreads) throws IOException {
+        Indexer i = new Indexer(true);
+        ImprovedTokenizer it = new ImprovedTokenizer();
 
-        File fcorpus = new File(corpusPath), ftoken = new File(tokenized);
-        if(fcorpus.exists()) fcorpus.delete();
-        if(ftoken.exists()) ftoken.delete();
+        try (Indexer.Pipeline pipeline = i.openPipeline((document) -> it.documentTokenization(document, false), nThreads)) {
+            if (xml) {
+                new XMLCorpusReader().readDocuments(input, columns, pipeline);
+            } else {
+                new CorpusReader().readDocuments(input, columns, false, pipeline);
+            }
+            pipeline.finish();
+            System.out.println(pipeline.getDocumentCount() + " documents; " + StemCache.shared());
+        }
 
-        CorpusReader c = new CorpusReader();
-        c.corpusReader(input, corpusPath, columns);
+        executeMerge();
+    }
+    
+    /**
+     * Add a corpus to the index as a new segment
+     *
+     * @param xml
+     * @param input
+     * @param update - The documents replace the indexed ones with the same
+     * docids
+     * @param firstDocid - Docid of the first document of a tsv corpus; not
+     * positive for the next docid of the index
+     * @param columns
+     * @param nThreads
+     * @throws IOException
+     */
+    private void executeAdd(boolean xml, String input, boolean update, int firstDocid, String[] columns, int nThreads) throws IOException {
+        ImprovedTokenizer it = new ImprovedTokenizer();
 
-        if (useSimpleTokenizer) {
-            executeSimpleTokenizer(corpusPath, tokenized, true);
-        } else {
-            executeImprovedTokenizer(corpusPath, tokenized, false, true);
+        try (IncrementalIndexer ii = new IncrementalIndexer(3)) {
+            ii.setMergeListener(DocumentIndexer::printMerge);
+            int first = firstDocid > 0 ? firstDocid : ii.getNextDocid();
+            IncrementalIndexer.DocumentSource source = (documents) -> {
+                if (xml) {
+                    new XMLCorpusReader().readDocuments(input, columns, documents);
+                } else {
+                    new CorpusReader().readDocuments(input, columns, false, first, documents);
+                }
+            };
+            Indexer.DocumentTokenizer tokenizer = (document) -> it.documentTokenization(document, false);
+            Segments.Entry segment = update ? ii.updateDocuments(source, tokenizer, nThreads) : ii.addDocuments(source, tokenizer, nThreads);
+            System.out.println(segment == null ? "No documents to add" : (update ? "Updated " : "Added ") + segment.getDocuments() + " documents as " + segment.getName());
+        }
+    }
+
+    private void executeDelete(int[] docids) throws IOException {
+        try (IncrementalIndexer ii = new IncrementalIndexer(3)) {
+            ii.setMergeListener(DocumentIndexer::printMerge);
+            System.out.println("Deleted " + ii.deleteDocuments(docids) + " documents");
         }
+    }
 
-        executeIndexer(tokenized, true);
+    private static void printMerge(List<Segments.Entry> merged, Segments.Entry segment) {
+        if (segment == null) {
+            System.out.println("Dropped " + merged.size() + " deleted segments");
+        } else {
+            System.out.println("Merged " + merged.size() + " segments into " + segment.getName() + " (" + segment.getDocuments() + " documents)");
+        }
+    }
 
-//        fcorpus.delete();
-//        ftoken.delete();
+    private void executeSearch(String query, int topKResults, ScoringModel model) throws IOException {
+        try (RankedRetrieval r = new RankedRetrieval()) {
+            r.setScoringModel(model);
+            r.retrieveResultsMemory(query, topKResults);
+        }
     }
     
-    private void executeSearch(String query, int topKResults) throws IOException {
-        RankedRetrieval r = new RankedRetrieval();
-        r.retrieveResultsMemory(query, topKResults);
+    private void executeServe(int topKResults, int port, int nThreads) throws IOException {
+        try (RankedRetrieval r = new RankedRetrieval()) {
+            QueryServer server = new QueryServer(r, topKResults);
+            if (port < 0) {
+                server.serve(new BufferedReader(new InputStreamReader(System.in)), new PrintWriter(System.out));
+            } else {
+                server.listen(port, nThreads);
+            }
+        }
     }
-    
+
     private void executeEvaluation(int rank) throws IOException {
-        Evaluation e = new Evaluation(rank, 1);
-        System.out.println(e.getEvaluation());
+        executeEvaluation(rank, 1);
     }
     
     private void executeEvaluation(int rank, float beta) throws IOException {
-        Evaluation e = new Evaluation(rank, beta);
-        System.out.println(e.getEvaluation());
+        System.out.println(Evaluation.compareScoringModels(rank, beta));
     }
 
-    public static void main(String[] args) throws IOException, ParserConfigurationException, SAXException {
+    public static void main(String[] args) throws IOException {
         if (args.length < 1) {
             System.out.println("Invalid Syntax. Try '-h' or '--help' for more information.");
             return;
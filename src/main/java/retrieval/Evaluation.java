@@ -27,9 +27,11 @@ public class Evaluation {
     private Map<Integer, Map<Integer, Integer>> retrievedDocsRank = new HashMap<>();
     private final int maxRetrievedDocs;
     private final float beta;
+    private final ScoringModel scoringModel;
     
     private final long queryExecutionTotalTime;
     private final List<Long> queryExecutionTimes = new ArrayList<>();
+    private String postingsCacheStats = "";
    
     /**
      * Receive the limit number of results and value of beta;
@@ -39,9 +41,21 @@ public class Evaluation {
      * @throws IOException 
      */
     public Evaluation(int maxRetrievedDocs, float beta) throws IOException {
+        this(maxRetrievedDocs, beta, ScoringModel.COSINE);
+    }
+
+    /**
+     * Evaluate the queries scored with a given scoring model
+     * @param maxRetrievedDocs
+     * @param beta
+     * @param scoringModel
+     * @throws IOException 
+     */
+    public Evaluation(int maxRetrievedDocs, float beta, ScoringModel scoringModel) throws IOException {
         if (maxRetrievedDocs < 10) maxRetrievedDocs = 10;
         this.maxRetrievedDocs = maxRetrievedDocs;
         this.beta = beta;
+        this.scoringModel = scoringModel;
         long startTime = System.currentTimeMillis();
         this.retrievedDocs = executeQueries(maxRetrievedDocs);
         this.queryExecutionTotalTime = System.currentTimeMillis()-startTime;
@@ -59,18 +73,19 @@ public class Evaluation {
      */
     private Map<Integer, List<Integer>> executeQueries(int rank) throws FileNotFoundException, IOException {
         Map<Integer, List<Integer>> hm = new HashMap<>();
-        RankedRetrieval r = new RankedRetrieval();
-        BufferedReader br = new BufferedReader(new FileReader(queriesFile));
-        String line;
-        int queryID = 1;
-        long startTime;
-        while ((line = br.readLine()) != null) {
-            startTime = System.currentTimeMillis();
-            hm.put(queryID, r.retrieveResults(line, rank));
-            queryID++;
-            queryExecutionTimes.add(System.currentTimeMillis()-startTime);
+        try (RankedRetrieval r = new RankedRetrieval(); BufferedReader br = new BufferedReader(new FileReader(queriesFile))) {
+            r.setScoringModel(scoringModel);
+            String line;
+            int queryID = 1;
+            long startTime;
+            while ((line = br.readLine()) != null) {
+                startTime = System.currentTimeMillis();
+                hm.put(queryID, r.retrieveResults(line, rank));
+                queryID++;
+                queryExecutionTimes.add(System.currentTimeMillis()-startTime);
+            }
+            postingsCacheStats = r.getPostingsCache().toString();
         }
-        br.close();
         return hm;
     }
     
@@ -474,10 +489,28 @@ public class Evaluation {
         sb.append("QUERY NDCG: ").append(NDCG()).append(delimiter);
         sb.append("Query throughput: ").append(queryThroughput()).append(" queries per sec.").append(delimiter);
         sb.append("Median query latency: ").append(meadianQueryLatency()).append(" (ms)").append(delimiter);
+        sb.append(postingsCacheStats).append(delimiter);
         
         return sb.toString();
     }
 
+    /**
+     * Evaluate the queries with every scoring model
+     * 
+     * @param maxRetrievedDocs
+     * @param beta
+     * @return Evaluation of each scoring model
+     * @throws IOException 
+     */
+    public static String compareScoringModels(int maxRetrievedDocs, float beta) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (ScoringModel model : ScoringModel.values()) {
+            sb.append("Scoring model: ").append(model).append("\n");
+            sb.append(new Evaluation(maxRetrievedDocs, beta, model).getEvaluation()).append("\n");
+        }
+        return sb.toString();
+    }
+
 //    public static void main(String[] args) throws IOException {
 //        Evaluation ev = new Evaluation(100,1);
 //        
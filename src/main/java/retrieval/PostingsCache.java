@@ -0,0 +1,119 @@
+package retrieval;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of encoded postings payloads, one entry per term, bounded by a
+ * byte budget. A payload larger than the whole budget is never cached; the
+ * caller reads it from disk every time.
+ *
+ * @author Fábio Ferreira
+ * @author Rui Frazão
+ */
+public class PostingsCache {
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    private static final int ENTRY_OVERHEAD = 64;                             //map entry, key and array headers
+
+    private final long maxBytes;
+    private final Map<String, byte[]> payloads = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public PostingsCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public PostingsCache(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * Cached payload of a term
+     *
+     * @param term
+     * @return Payload; null if the term is not cached
+     */
+    public synchronized byte[] get(String term) {
+        byte[] payload = payloads.get(term);
+        if (payload == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return payload;
+    }
+
+    /**
+     * Cache the payload of a term, evicting the least recently used terms
+     * until it fits in the budget
+     *
+     * @param term
+     * @param payload
+     */
+    public synchronized void put(String term, byte[] payload) {
+        long size = entrySize(term, payload);
+        if (size > maxBytes) {
+            return;
+        }
+        byte[] previous = payloads.put(term, payload);
+        if (previous != null) {
+            usedBytes -= entrySize(term, previous);
+        }
+        usedBytes += size;
+
+        Iterator<Map.Entry<String, byte[]>> eldest = payloads.entrySet().iterator();
+        while (usedBytes > maxBytes) {
+            Map.Entry<String, byte[]> entry = eldest.next();
+            usedBytes -= entrySize(entry.getKey(), entry.getValue());
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private static long entrySize(String term, byte[] payload) {
+        return ENTRY_OVERHEAD + 2L * term.length() + payload.length;
+    }
+
+    public synchronized void clear() {
+        payloads.clear();
+        usedBytes = 0;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int size() {
+        return payloads.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return "Postings cache: " + payloads.size() + " terms, " + usedBytes + "/" + maxBytes + " bytes, "
+                + hits + " hits, " + misses + " misses, " + evictions + " evictions, hit rate "
+                + (lookups == 0 ? 0 : Math.round(1000.0 * hits / lookups) / 10.0) + "%";
+    }
+
+}
@@ -0,0 +1,137 @@
+package retrieval;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Query server over a warm index: the index is loaded once and queries are
+ * answered through a line protocol, either on stdin/stdout or on a local
+ * socket with one connection per client.
+ *
+ * Request: "query" or "number of results TAB query", where the query may be
+ * a "phrase" or a "proximity"~N query over a positional index; "stats"
+ * returns the postings cache counters, "reload" switches to the latest
+ * generation of the index (e.g. after a new full index) without stopping the
+ * running queries and "quit" closes the connection. Response: one "docid TAB
+ * score" line per result, followed by a summary line "# n results in x ms"
+ * (or "# error message").
+ *
+ * @author Fábio Ferreira
+ * @author Rui Frazão
+ */
+public class QueryServer {
+
+    private final RankedRetrieval retrieval;
+    private final int defaultResults;
+
+    public QueryServer(RankedRetrieval retrieval, int defaultResults) {
+        this.retrieval = retrieval;
+        this.defaultResults = defaultResults;
+    }
+
+    /**
+     * Answer queries until the end of the input or a quit request
+     *
+     * @param in
+     * @param out
+     * @throws IOException
+     */
+    public void serve(BufferedReader in, PrintWriter out) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null && !line.trim().equalsIgnoreCase("quit")) {
+            if (line.trim().equalsIgnoreCase("stats")) {
+                out.println("# " + retrieval.getPostingsCache());
+                out.flush();
+            } else if (line.trim().equalsIgnoreCase("reload")) {
+                out.println(reload());
+                out.flush();
+            } else if (!line.trim().isEmpty()) {
+                out.print(answer(line));
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Accept clients on a loopback port; each connection is served by one of
+     * nThreads workers
+     *
+     * @param port
+     * @param nThreads
+     * @throws IOException
+     */
+    public void listen(int port, int nThreads) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(nThreads);
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("Listening on " + server.getLocalSocketAddress());
+            while (!Thread.currentThread().isInterrupted()) {
+                Socket client = server.accept();
+                workers.execute(() -> serveClient(client));
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private void serveClient(Socket client) {
+        try (Socket socket = client;
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            serve(in, out);
+        } catch (IOException e) {
+            System.err.println("IOException - " + e.getMessage());
+        }
+    }
+
+    private String reload() {
+        try {
+            return "# " + (retrieval.refresh() ? "reloaded " : "unchanged ") + retrieval.getSegmentCount() + " segments";
+        } catch (IOException e) {
+            return "# error " + e.getMessage();
+        }
+    }
+
+    /**
+     * Run one request and format its response
+     *
+     * @param request
+     * @return Response lines
+     */
+    private String answer(String request) {
+        StringBuilder sb = new StringBuilder();
+        int topKResults = defaultResults, tab = request.indexOf('\t');
+        String query = request;
+        List<Map.Entry<Integer, Double>> results;
+        long startTime = System.nanoTime();
+
+        try {
+            if (tab >= 0) {
+                topKResults = Integer.parseInt(request.substring(0, tab).trim());
+                query = request.substring(tab + 1);
+            }
+            results = retrieval.retrieveResultsWithScores(query, topKResults);
+        } catch (IOException | RuntimeException e) {                            //malformed request or query
+            return sb.append("# error ").append(e.getMessage()).append('\n').toString();
+        }
+
+        for (Map.Entry<Integer, Double> result : results) {
+            sb.append(result.getKey()).append('\t').append(result.getValue()).append('\n');
+        }
+        sb.append("# ").append(results.size()).append(" results in ")
+                .append(String.format(Locale.US, "%.3f", (System.nanoTime() - startTime) / 1e6)).append(" ms\n");
+        return sb.toString();
+    }
+
+}
@@ -1,156 +1,514 @@
 package retrieval;
 
-import file_handling.MemoryManager;
-import indexer.Indexer;
-import java.io.BufferedReader;
-import java.io.File;
+import indexer.Bm25;
+import indexer.CompressedBitmap;
+import indexer.DocumentStats;
+import indexer.IndexSnapshot;
+import indexer.Lexicon;
+import indexer.Merger;
+import indexer.PostingsCodec;
+import indexer.PostingsCursor;
+import indexer.Segment;
+import indexer.Segments;
+import java.io.Closeable;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import tokenizer.ImprovedTokenizer;
 
 /**
+ * Ranked retrieval over a snapshot of the segments of the index. A query is
+ * scored segment by segment into one top-k heap, with the idf and the
+ * average lengths of the whole collection, so the ranking does not depend
+ * on how the documents are split in segments. Deleted documents are skipped;
+ * the idf and the lengths still count them until their segment is merged.
+ *
+ * Each query holds a reference to the snapshot it started with, taken
+ * without locking, so merges and new full indexes are published while
+ * queries run: a generation published through the same Segments instance
+ * is searched from the next query on (one published by another process
+ * after refresh), and the old generation is released by its last query.
+ * An instance is safe to share between threads: the lexicons and the
+ * postings files are only read with absolute or positioned reads, and the
+ * query scratch space is per thread.
  *
  * @author fraza0
  */
-public class RankedRetrieval {
-
-    private final String finalIndex = "inverted_index/";
-//    private final String indexInfo = "index_info.txt";
-
-    private final String dictionaryPath = "dictionary/";
-    private final String tokensDictionary = "dictionary.dict";
-    private final Map<String, Double> termIDFDictionary = new HashMap<>();
+public class RankedRetrieval implements Closeable {
 
-    private final int threshold = 70;
-    private final Map<String, Map<String, String>> filesRead = new HashMap<>();
-    private final List<String> neededIndexedTerms = new ArrayList<>();
+    private final Segments index;
+    private final PostingsCache postingsCache;
+    private final ThreadLocal<TopKHeap> topKHeaps = ThreadLocal.withInitial(TopKHeap::new);
+    private final ImprovedTokenizer queryTokenizer = new ImprovedTokenizer();
     private final float minimumIDF = 0f;
-    private final int invIndexFilenamesize;
+    private volatile boolean dynamicPruning = true;
+    private volatile ScoringModel scoringModel = ScoringModel.COSINE;
+    private volatile View view;
+    private double k1 = Bm25.DEFAULT_K1, b = Bm25.DEFAULT_B;
+    private double[] fieldWeights = null;                                       //default weights for the fields of the index
+    private boolean closed = false;
 
     public RankedRetrieval() throws IOException {
-        clear_directoryFile();
-        loadDictionary();
-        
-        File[] invIndFiles = new File(finalIndex).listFiles();
-        this.invIndexFilenamesize = invIndFiles[0].getName().split("\\.")[0].length();
+        this(PostingsCache.DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param cacheBytes - Byte budget of the postings cache
+     * @throws IOException
+     */
+    public RankedRetrieval(long cacheBytes) throws IOException {
+        this(new Segments(), cacheBytes);
+    }
+
+    /**
+     * @param index - Segments of the index
+     * @param cacheBytes - Byte budget of the postings cache
+     * @throws IOException
+     */
+    public RankedRetrieval(Segments index, long cacheBytes) throws IOException {
+        IndexSnapshot snapshot = index.acquire();
+        if (snapshot.size() == 0) {
+            snapshot.decRef();
+            throw new FileNotFoundException("There is no index in " + index.getDirectory() + "; create it with the indexer first");
+        }
+        this.index = index;
+        this.view = new View(snapshot, k1, b, fieldWeights);
+        this.postingsCache = new PostingsCache(cacheBytes);
 //        System.out.println("VER SOBRE PRIORITY QUEUE - https://nlp.stanford.edu/IR-book/html/htmledition/computing-vector-scores-1.html \n\n");
     }
 
     /**
-     * Load dictionary file containing token;IDF
+     * Snapshot searched by the queries with the collection statistics and
+     * the BM25 scorer of its segments
+     */
+    private static final class View {
+
+        private final IndexSnapshot snapshot;
+        private final long documentCount;
+        private final int fields;
+        private final Bm25 bm25;
+
+        private View(IndexSnapshot snapshot, double k1, double b, double[] fieldWeights) {
+            List<DocumentStats> segmentStats = new ArrayList<>(snapshot.size());
+            long documents = 0;
+            int maxFields = 1;
+            for (Segment segment : snapshot.getSegments()) {
+                segmentStats.add(segment.getDocumentStats());
+                documents += segment.getDocumentStats().getDocumentCount();
+                maxFields = Math.max(maxFields, segment.getDocumentStats().getFields());
+            }
+            this.snapshot = snapshot;
+            this.documentCount = documents;
+            this.fields = maxFields;
+            this.bm25 = new Bm25(segmentStats, k1, b, fieldWeights == null ? Bm25.defaultFieldWeights(maxFields) : fieldWeights);
+        }
+    }
+
+    /**
+     * Current view with a reference to its snapshot, to be released with
+     * release; lock free unless a new generation was published through the
+     * Segments instance of the index
      *
-     * @throws FileNotFoundException
+     * @return View
      * @throws IOException
      */
-    private void loadDictionary() throws FileNotFoundException, IOException {
-        String line, term, idf;
-        String[] parts;
-        BufferedReader reader = new BufferedReader(new FileReader(dictionaryPath + tokensDictionary));
-        while ((line = reader.readLine()) != null) {
-            parts = line.split(";");
-            term = parts[0];
-            idf = parts[1];
-            termIDFDictionary.put(term, Double.parseDouble(idf));
+    private View acquireView() throws IOException {
+        if (index.getGeneration() != view.snapshot.getGeneration()) {
+            refresh(false);
         }
+        View current;
+        while (!(current = view).snapshot.tryIncRef()) {
+            if (current == view) {                                              //released without a successor
+                throw new IOException("The index was closed");
+            }
+        }
+        return current;
     }
 
-    private double queryWeight(String query) {
+    private void release(View current) throws IOException {
+        current.snapshot.decRef();
+    }
+
+    /**
+     * Search the latest generation of the index from the next query on,
+     * e.g. one published by another process; running queries finish on the
+     * generation they started with
+     *
+     * @return true if there was a new generation
+     * @throws IOException
+     */
+    public boolean refresh() throws IOException {
+        return refresh(true);
+    }
+
+    private synchronized boolean refresh(boolean readManifest) throws IOException {
+        View old = view;
+        if (closed) {
+            throw new IOException("The index was closed");
+        }
+        if (!readManifest && index.getGeneration() == old.snapshot.getGeneration()) {
+            return false;                                                       //refreshed by another query
+        }
+        IndexSnapshot snapshot = index.acquire();
+        if (snapshot.getGeneration() == old.snapshot.getGeneration()) {
+            snapshot.decRef();
+            return false;
+        }
+        view = new View(snapshot, k1, b, fieldWeights);
+        old.snapshot.decRef();
+        return true;
+    }
+
+    private double queryWeight(View current, String query) {
         String[] queryTerms = query.split(" ");
         if (query.length() == 1) {
-            return termWeight(queryTerms[0]);
+            return termWeight(current, queryTerms[0]);
         }
         double sum = 0;
         for (String term : queryTerms) {
-            sum += Math.pow(termWeight(term), 2);
+            sum += Math.pow(termWeight(current, term), 2);
         }
 
         return Math.round(Math.sqrt(sum) * 1000.0) / 1000.0;
     }
 
-    private double termWeight(String term) {
-        return termIDFDictionary.get(term);
+    /**
+     * Cosine idf of a term over the whole collection
+     *
+     * @param current
+     * @param term
+     * @return idf; 0 if no segment has the term
+     */
+    private double termWeight(View current, String term) {
+        int df = documentFrequency(current, term);
+        return df == 0 ? 0 : (float) Merger.idf(current.documentCount, df);
     }
 
     /**
-     * Fetch term's postings list
+     * Number of documents of every segment where a term is
      *
+     * @param current
+     * @param term
+     * @return Document frequency
+     */
+    private int documentFrequency(View current, String term) {
+        int df = 0;
+        Lexicon.Entry entry;
+        for (Segment segment : current.snapshot.getSegments()) {
+            entry = segment.getLexicon().lookup(term);
+            df += entry == null ? 0 : entry.getDocumentFrequency();
+        }
+        return df;
+    }
+
+    /**
+     * Fetch term's postings list in a segment with a single positioned read
+     * of the postings file given by the lexicon of the segment
+     *
+     * @param segment
      * @param queryTerm
-     * @return Map of parsed postings
-     * @throws FileNotFoundException
+     * @return Cursor over the postings; empty if the segment does not have
+     * the term
      * @throws IOException
      */
-    private Map<Integer, Double> fetchTermPostingsListsMemory(String queryTerm) throws FileNotFoundException, IOException {
-        Indexer i = new Indexer();
+    private PostingsCursor fetchTermPostingsListsMemory(Segment segment, String queryTerm) throws IOException {
+        String key = segment.getName() + "/" + queryTerm;
+        byte[] cached = postingsCache.get(key);
+        if (cached != null) {
+            return new PostingsCursor(ByteBuffer.wrap(cached));
+        }
+
+        Lexicon.Entry entry = segment.getLexicon().lookup(queryTerm);
+        if (entry == null) {
+            return PostingsCursor.empty();
+        }
+        byte[] payload = segment.readPayload(entry);
+        postingsCache.put(key, payload);
+
+        return new PostingsCursor(ByteBuffer.wrap(payload));
+    }
+
+    public PostingsCache getPostingsCache() {
+        return postingsCache;
+    }
+
+    /**
+     * Number of segments searched by the queries
+     *
+     * @return Number of segments
+     */
+    public int getSegmentCount() {
+        return view.snapshot.size();
+    }
+
+    /**
+     * Use WAND dynamic pruning when only the best documents are needed
+     *
+     * @param dynamicPruning
+     */
+    public void setDynamicPruning(boolean dynamicPruning) {
+        this.dynamicPruning = dynamicPruning;
+    }
+
+    /**
+     * Scoring function used by the queries that do not choose one
+     *
+     * @param scoringModel
+     */
+    public void setScoringModel(ScoringModel scoringModel) {
+        this.scoringModel = scoringModel;
+    }
+
+    public ScoringModel getScoringModel() {
+        return scoringModel;
+    }
 
-        String filename = queryTerm.substring(0, invIndexFilenamesize) + i.extension;
+    /**
+     * BM25 and BM25F parameters; with other than the default parameters the
+     * upper bounds of the lexicon do not hold and BM25 queries are not pruned
+     *
+     * @param k1
+     * @param b
+     * @param fieldWeights - BM25F weight of each field
+     */
+    public synchronized void setBm25Parameters(double k1, double b, double... fieldWeights) {
+        this.k1 = k1;
+        this.b = b;
+        this.fieldWeights = fieldWeights;
+        view = new View(view.snapshot, k1, b, fieldWeights);                    //takes over the reference of the old view
+    }
+
+    private List<Map.Entry<Integer, Double>> rankedScore(View current, String query, int topK, ScoringModel model) throws IOException {
+        if (query.isEmpty()) {
+            return new ArrayList<>();
+        }
+        if (dynamicPruning && topK != Integer.MAX_VALUE && (model == ScoringModel.COSINE || current.bm25.hasDefaultParameters())) {
+            return rankedScoreWAND(current, query, topK, model);
+        }
+        return rankedScoreMemory(current, query, topK, model);
+    }
 
-        return parsePostings(filesRead.get(filename).get(queryTerm));
+    /**
+     * Weight of each query term: idf over the query norm for the cosine
+     * score, the BM25 idf otherwise, both over the whole collection; a term
+     * repeated in the query counts once per occurrence
+     *
+     * @param current
+     * @param queryTerms
+     * @param query
+     * @param model
+     * @return Query term weights
+     */
+    private double[] queryTermWeights(View current, String[] queryTerms, String query, ScoringModel model) {
+        double[] weights = new double[queryTerms.length];
+        if (model == ScoringModel.COSINE) {
+            double queryWeight = queryWeight(current, query);
+            for (int t = 0; t < queryTerms.length; t++) {
+                weights[t] = termWeight(current, queryTerms[t]) / queryWeight;
+            }
+        } else {
+            for (int t = 0; t < queryTerms.length; t++) {
+                weights[t] = current.bm25.idf(documentFrequency(current, queryTerms[t]));
+            }
+        }
+        return weights;
     }
 
     /**
-     * Parse Postings from terms the file where the searched term is if it
-     * exists, and returns the map sorted by TF(-IDF) ranking
+     * Score of the current posting of a query term
      *
-     * @param postingsString
-     * @return Sorted Map by TF(-IDF) Ranking
+     * @param model
+     * @param postings
+     * @param termWeight
+     * @param scorer
+     * @param fieldFreqs - Scratch for the field term frequencies
+     * @return Score of the term in the document of the posting
      */
-    private Map<Integer, Double> parsePostings(String postingsString) {
-        Map<Integer, Double> parsedPostings = new HashMap<>();
-        Indexer i = new Indexer();
-        String[] p;
-        for (String posting : postingsString.split(i.termDelimiter)) {
-            p = posting.split(i.postingsDelimiter);
-            parsedPostings.put(Integer.parseInt(p[0]), Double.parseDouble(p[1]));
+    private double termScore(ScoringModel model, PostingsCursor postings, double termWeight, Bm25 scorer, int[] fieldFreqs) {
+        switch (model) {
+            case BM25:
+                return termWeight * scorer.score(postings.tf(), postings.docid());
+            case BM25F:
+                return termWeight * scorer.fieldScore(fieldFreqs, postings.fieldFrequencies(fieldFreqs), postings.docid());
+            default:
+                return postings.weight() * termWeight;                          //postings hold the TF value of the term
         }
+    }
 
-        return parsedPostings;
+    /**
+     * Upper bound of termScore for a term of the query in a segment; the
+     * BM25 bounds of the lexicon, computed over the lengths and the field
+     * weights of the segment, are scaled to the collection lengths and the
+     * field weights of the query
+     *
+     * @param model
+     * @param entry - Lexicon entry of the term in the segment; null if the
+     * segment does not have the term
+     * @param termWeight
+     * @param scorer - Scorer of the segment
+     * @return Maximum score of the term
+     */
+    private double termUpperBound(ScoringModel model, Lexicon.Entry entry, double termWeight, Bm25 scorer) {
+        if (entry == null) {
+            return 0;
+        }
+        switch (model) {
+            case BM25:
+                return entry.getMaxBm25() * termWeight * scorer.lengthBoundScale();
+            case BM25F:
+                return entry.getMaxBm25f() * termWeight * scorer.fieldLengthBoundScale() * scorer.fieldWeightBoundScale();
+            default:
+                return entry.getMaxWeight() * termWeight;
+        }
     }
 
     /**
-     * Calculate cosine score between documents where the terms of a query exist
-     * and the query itself
+     * Score the documents where the terms of a query exist, document at a
+     * time over the docid sorted postings, keeping only the best topK
+     * documents
      *
+     * @param current
      * @param query
+     * @param topK
+     * @param model
      * @return List of Scores ordered by Rank
      * @throws IOException
      */
-    private List<Map.Entry<Integer, Double>> cosineScoreMemory(String query) throws IOException {
-        Map<Integer, Double> scores = new HashMap<>();
+    private List<Map.Entry<Integer, Double>> rankedScoreMemory(View current, String query, int topK, ScoringModel model) throws IOException {
         String[] queryTerms = query.split(" ");
-        Map<Integer, Double> postings;
-        double queryWeight = queryWeight(query), normalizedTermWeight;
+        PostingsCursor[] postings = new PostingsCursor[queryTerms.length];
+        double[] termWeights = queryTermWeights(current, queryTerms, query, model);
+        int[] fieldFreqs = new int[current.fields];
+        Segment segment;
+        Bm25 segmentScorer;
+        CompressedBitmap deleted;
+        double score;
+        int docid, t;
+
+        TopKHeap topKHeap = topKHeaps.get();
+        topKHeap.reset(topK);
+        for (int s = 0; s < current.snapshot.size(); s++) {
+            segment = current.snapshot.getSegments().get(s);
+            segmentScorer = current.bm25.forSegment(segment.getDocumentStats());
+            deleted = current.snapshot.getDeletes(s);
+            for (t = 0; t < queryTerms.length; t++) {
+                postings[t] = fetchTermPostingsListsMemory(segment, queryTerms[t]);
+            }
 
-        for (String term : queryTerms) {
-            normalizedTermWeight = termWeight(term) / queryWeight;
-            postings = fetchTermPostingsListsMemory(term);
-            for (int docid : postings.keySet()) {
-                scores.put(docid, scores.getOrDefault(docid, 0d)
-                        + (postings.get(docid) * normalizedTermWeight));        //postings hold the TF value of the term
+            while (true) {
+                docid = PostingsCursor.END;
+                for (t = 0; t < postings.length; t++) {
+                    docid = Math.min(docid, postings[t].docid());
+                }
+                if (docid == PostingsCursor.END) {
+                    break;
+                }
+
+                score = 0;
+                for (t = 0; t < postings.length; t++) {
+                    if (postings[t].docid() == docid) {
+                        score += termScore(model, postings[t], termWeights[t], segmentScorer, fieldFreqs);
+                        postings[t].next();
+                    }
+                }
+                if (!deleted.contains(docid)) {
+                    topKHeap.offer(docid, score);
+                }
             }
         }
 
-        return orderScoresByRank(scores);
+        return topKHeap.toSortedList();
     }
 
     /**
-     * Order map by descending values
+     * Ranked score with WAND dynamic pruning: documents whose score upper
+     * bound, the sum of the maximum scores of the terms they may contain, can
+     * not beat the worst of the current topK documents are skipped. Returns
+     * the same documents and scores as rankedScoreMemory.
      *
-     * @param map
-     * @return
+     * @param current - Its scorer must have the default parameters for BM25
+     * and BM25F
+     * @param query
+     * @param topK
+     * @param model
+     * @return List of Scores ordered by Rank
+     * @throws IOException
      */
-    private List<Map.Entry<Integer, Double>> orderScoresByRank(Map<Integer, Double> map) {
-        List<Map.Entry<Integer, Double>> sortedEntries = new ArrayList<>(map.entrySet());
+    private List<Map.Entry<Integer, Double>> rankedScoreWAND(View current, String query, int topK, ScoringModel model) throws IOException {
+        String[] queryTerms = query.split(" ");
+        int n = queryTerms.length;
+        PostingsCursor[] postings = new PostingsCursor[n];
+        double[] termWeights = queryTermWeights(current, queryTerms, query, model), upperBounds = new double[n];
+        int[] order = new int[n], fieldFreqs = new int[current.fields];
+        Segment segment;
+        Bm25 segmentScorer;
+        CompressedBitmap deleted;
+        double score, bound;
+        int pivot, pivotDocid, t, i, j;
+
+        TopKHeap topKHeap = topKHeaps.get();
+        topKHeap.reset(topK);
+        for (int s = 0; s < current.snapshot.size(); s++) {                     //the heap keeps its threshold across segments
+            segment = current.snapshot.getSegments().get(s);
+            segmentScorer = current.bm25.forSegment(segment.getDocumentStats());
+            deleted = current.snapshot.getDeletes(s);
+            for (t = 0; t < n; t++) {
+                upperBounds[t] = termUpperBound(model, segment.getLexicon().lookup(queryTerms[t]), termWeights[t], segmentScorer);
+                postings[t] = fetchTermPostingsListsMemory(segment, queryTerms[t]);
+                order[t] = t;
+            }
 
-        Collections.sort(sortedEntries, (Map.Entry<Integer, Double> e1, Map.Entry<Integer, Double> e2) -> e2.getValue().compareTo(e1.getValue()));
+            while (true) {
+                for (i = 1; i < n; i++) {                                       //sort terms by current docid
+                    t = order[i];
+                    for (j = i - 1; j >= 0 && postings[order[j]].docid() > postings[t].docid(); j--) {
+                        order[j + 1] = order[j];
+                    }
+                    order[j + 1] = t;
+                }
+
+                pivot = -1;
+                bound = 0;
+                for (i = 0; i < n && postings[order[i]].docid() != PostingsCursor.END; i++) {
+                    bound += upperBounds[order[i]];
+                    if (!topKHeap.isFull() || bound * (1 + 1e-9) > topKHeap.minScore()) {
+                        pivot = i;
+                        break;
+                    }
+                }
+                if (pivot == -1) {
+                    break;
+                }
+
+                pivotDocid = postings[order[pivot]].docid();
+                if (postings[order[0]].docid() == pivotDocid && deleted.contains(pivotDocid)) {
+                    for (t = 0; t < n; t++) {                                   //skip a deleted document unscored
+                        if (postings[t].docid() == pivotDocid) {
+                            postings[t].next();
+                        }
+                    }
+                } else if (postings[order[0]].docid() == pivotDocid) {
+                    score = 0;
+                    for (t = 0; t < n; t++) {                                   //same summation order as rankedScoreMemory
+                        if (postings[t].docid() == pivotDocid) {
+                            score += termScore(model, postings[t], termWeights[t], segmentScorer, fieldFreqs);
+                            postings[t].next();
+                        }
+                    }
+                    topKHeap.offer(pivotDocid, score);
+                } else {
+                    for (i = 0; i < pivot; i++) {
+                        postings[order[i]].advance(pivotDocid);
+                    }
+                }
+            }
+        }
 
-        return sortedEntries;
+        return topKHeap.toSortedList();
     }
 
     /**
@@ -162,9 +520,11 @@ public class RankedRetrieval {
      * @throws IOException
      */
     public List<Map.Entry<Integer, Double>> retrieveResultsMemory(String query, int topKresults) throws IOException {
-        List<Map.Entry<Integer, Double>> results = new ArrayList<>(cosineScoreMemory(filterQuery(query)));
-        if (results.size() < topKresults) {
-            topKresults = results.size();
+        List<Map.Entry<Integer, Double>> results = retrieveResultsWithScores(query, topKresults);
+        topKresults = results.size();
+        if (results.isEmpty()) {
+            System.out.println("The search did not match any documents.");
+            return results;
         }
 
         System.out.println("Showing first "+topKresults+"\nDocid\tScore");
@@ -175,41 +535,227 @@ public class RankedRetrieval {
         return results;
     }
     
-    public List<Integer> retrieveResults(String query) throws IOException {
-        List<Map.Entry<Integer, Double>> results = new ArrayList<>(cosineScoreMemory(filterQuery(query)));
-        List<Integer> docs = new ArrayList<>();
-        for (Map.Entry<Integer, Double> result : results) {
-            docs.add(result.getKey());
+    /**
+     * Retrieve the best documents of a query with their scores
+     *
+     * @param query
+     * @param topKResults
+     * @return List of (docid, score) ordered by rank
+     * @throws IOException
+     */
+    public List<Map.Entry<Integer, Double>> retrieveResultsWithScores(String query, int topKResults) throws IOException {
+        return retrieveResultsWithScores(query, topKResults, scoringModel);
+    }
+
+    /**
+     * Retrieve the best documents of a query with their scores, scored with
+     * the given model. A query in double quotes is a phrase query; followed
+     * by ~N it is a proximity query, all of its terms within N consecutive
+     * terms of the same field of the document. Both need a positional index.
+     *
+     * @param query
+     * @param topKResults
+     * @param model
+     * @return List of (docid, score) ordered by rank
+     * @throws IOException
+     * @throws IllegalArgumentException if the window of a proximity query is
+     * not a number from 0 to PostingsCodec.FIELD_POSITION_GAP
+     */
+    public List<Map.Entry<Integer, Double>> retrieveResultsWithScores(String query, int topKResults, ScoringModel model) throws IOException {
+        String trimmed = query.trim();
+        int close = trimmed.startsWith("\"") ? trimmed.indexOf('"', 1) : -1;
+        int window = close > 0 ? parseWindow(trimmed.substring(close + 1).trim()) : 0;
+        View current = acquireView();
+        try {
+            if (close > 0) {
+                String terms = queryTokenizer.queryTokenization(trimmed.substring(1, close), false);
+                return positionalScore(current, terms, window, topKResults, model);
+            }
+            return rankedScore(current, filterQuery(current, query), topKResults, model);
+        } finally {
+            release(current);
         }
-        return docs;
     }
-    
-    public List<Integer> retrieveResults(String query, int topKResults) throws IOException {
-        List<Map.Entry<Integer, Double>> results = new ArrayList<>(cosineScoreMemory(filterQuery(query)));
-        List<Integer> docs = new ArrayList<>();
-        if (results.size() < topKResults) {
-            topKResults = results.size();
+
+    /**
+     * Window of a proximity query from the text after its closing quote
+     *
+     * @param suffix - Empty for a phrase query, otherwise ~N
+     * @return 0 for a phrase query, otherwise N
+     */
+    private static int parseWindow(String suffix) {
+        if (!suffix.startsWith("~")) {
+            return 0;
         }
+        int window;
+        try {
+            window = Integer.parseInt(suffix.substring(1).trim());
+        } catch (NumberFormatException e) {
+            window = -1;
+        }
+        if (window < 0 || window > PostingsCodec.FIELD_POSITION_GAP) {
+            throw new IllegalArgumentException("Invalid proximity window: " + suffix
+                    + ". Use \"<terms>\"~N with N from 0 to " + PostingsCodec.FIELD_POSITION_GAP);
+        }
+        return window;
+    }
 
-        for (int i = 0; i < topKResults; i++) {
-            docs.add(results.get(i).getKey());
+    /**
+     * Score the documents that hold every term of the query, in order and
+     * next to each other (window 0) or within a window of terms. Postings
+     * are intersected on docids first; positions are only decoded for the
+     * documents that have every term.
+     *
+     * @param current
+     * @param query - Query terms
+     * @param window - 0 for a phrase, otherwise the proximity window
+     * @param topK
+     * @param model
+     * @return List of Scores ordered by Rank
+     * @throws IOException
+     */
+    private List<Map.Entry<Integer, Double>> positionalScore(View current, String query, int window, int topK, ScoringModel model) throws IOException {
+        if (query.isEmpty()) {
+            return new ArrayList<>();
+        }
+        String[] queryTerms = query.split(" ");
+        int n = queryTerms.length, docid, t;
+        PostingsCursor[] postings = new PostingsCursor[n];
+        Segment segment;
+        Bm25 segmentScorer;
+        CompressedBitmap deleted;
+        double[] termWeights = queryTermWeights(current, queryTerms, query, model);
+        int[] fieldFreqs = new int[current.fields];
+        double score;
+
+        TopKHeap topKHeap = topKHeaps.get();
+        topKHeap.reset(topK);
+        segments:
+        for (int s = 0; s < current.snapshot.size(); s++) {
+            segment = current.snapshot.getSegments().get(s);
+            for (t = 0; t < n; t++) {
+                if (segment.getLexicon().lookup(queryTerms[t]) == null) {
+                    continue segments;
+                }
+                postings[t] = fetchTermPostingsListsMemory(segment, queryTerms[t]);
+                if (!postings[t].hasPositions()) {
+                    throw new IOException("The index has no term positions; create it with the positional indexer");
+                }
+            }
+            segmentScorer = current.bm25.forSegment(segment.getDocumentStats());
+            deleted = current.snapshot.getDeletes(s);
+
+            docid = postings[0].docid();
+            while (docid != PostingsCursor.END) {
+                for (t = 0; t < n && docid != PostingsCursor.END; t++) {       //intersect on docids
+                    postings[t].advance(docid);
+                    if (postings[t].docid() != docid) {
+                        docid = postings[t].docid();
+                        t = -1;
+                    }
+                }
+                if (docid == PostingsCursor.END) {
+                    break;
+                }
+
+                if (!deleted.contains(docid) && (window == 0 ? matchesPhrase(postings) : matchesWindow(postings, window))) {
+                    score = 0;
+                    for (t = 0; t < n; t++) {
+                        score += termScore(model, postings[t], termWeights[t], segmentScorer, fieldFreqs);
+                    }
+                    topKHeap.offer(docid, score);
+                }
+                postings[0].next();
+                docid = postings[0].docid();
+            }
+        }
+
+        return topKHeap.toSortedList();
+    }
+
+    /**
+     * Whether the terms occur one after the other in the current document
+     * of every cursor
+     *
+     * @param postings - Cursors of the phrase terms, in phrase order
+     * @return true if the phrase occurs
+     */
+    private static boolean matchesPhrase(PostingsCursor[] postings) {
+        int[] first = postings[0].positions();
+        boolean match;
+        for (int p = 0, tf = postings[0].tf(); p < tf; p++) {
+            match = true;
+            for (int t = 1; t < postings.length && match; t++) {
+                match = Arrays.binarySearch(postings[t].positions(), 0, postings[t].tf(), first[p] + t) >= 0;
+            }
+            if (match) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether one occurrence of each term fits in window consecutive
+     * positions of the current document of every cursor; moves the smallest
+     * of the current occurrences until the span fits or a term runs out
+     *
+     * @param postings
+     * @param window
+     * @return true if the terms occur within the window
+     */
+    private static boolean matchesWindow(PostingsCursor[] postings, int window) {
+        int n = postings.length, min, max, minTerm;
+        int[] next = new int[n];
+        int[][] positions = new int[n][];
+        int[] tfs = new int[n];
+        for (int t = 0; t < n; t++) {
+            positions[t] = postings[t].positions();
+            tfs[t] = postings[t].tf();
+        }
+
+        while (true) {
+            min = Integer.MAX_VALUE;
+            max = Integer.MIN_VALUE;
+            minTerm = 0;
+            for (int t = 0; t < n; t++) {
+                if (positions[t][next[t]] < min) {
+                    min = positions[t][next[t]];
+                    minTerm = t;
+                }
+                max = Math.max(max, positions[t][next[t]]);
+            }
+            if (max - min < window) {
+                return true;
+            }
+            if (++next[minTerm] == tfs[minTerm]) {
+                return false;
+            }
+        }
+    }
+
+    public List<Integer> retrieveResults(String query) throws IOException {
+        return retrieveResults(query, Integer.MAX_VALUE);
+    }
+    
+    public List<Integer> retrieveResults(String query, int topKResults) throws IOException {
+        List<Map.Entry<Integer, Double>> results = retrieveResultsWithScores(query, topKResults);
+        List<Integer> docs = new ArrayList<>(results.size());
+        for (Map.Entry<Integer, Double> result : results) {
+            docs.add(result.getKey());
         }
 
         return docs;
     }
 
-    private String filterQuery(String query) throws IOException {
-        Indexer i = new Indexer();
-        ImprovedTokenizer it = new ImprovedTokenizer();
+    private String filterQuery(View current, String query) throws IOException {
         StringBuilder sb = new StringBuilder();
-        String[] querySplit = it.queryTokenization(query, false).split(" ");
+        String[] querySplit = queryTokenizer.queryTokenization(query, false).split(" ");
         boolean isUniqueWord = (querySplit.length == 1);
 
         for (String term : querySplit) {
-            if (termIDFDictionary.containsKey(term) && (isUniqueWord || termIDFDictionary.get(term) > minimumIDF)) {
+            if (documentFrequency(current, term) > 0 && (isUniqueWord || termWeight(current, term) > minimumIDF)) {
                 sb.append(term).append(" ");
-                neededIndexedTerms.add(term.substring(0, invIndexFilenamesize) + i.extension);
-                loadTermsToMemory(term.substring(0, invIndexFilenamesize) + i.extension);
             }
         }
 
@@ -218,45 +764,17 @@ public class RankedRetrieval {
         return query;
     }
 
-    private boolean loadTermsToMemory(String termsfile) throws FileNotFoundException, IOException {
-        MemoryManager mm = new MemoryManager();
-        Indexer i = new Indexer();
-        File termsFile = new File(finalIndex + termsfile);
-
-        if (!termsFile.exists()) {
-            return false;
-        }
-
-        //Check if is possible to load terms
-        long totalMemory = mm.getTotalMemory(), freeMemory = mm.getFreeMemory(), estimated = (mm.getUsedMemory() + termsFile.length() - freeMemory) / totalMemory * 100;
-        if (estimated > threshold) {
-//            System.out.println("COULD NOT LOAD: " + termsfile);
-            return false;
-        }
-
-        String[] parts;
-        String line, term, postings;
-        Map<String, String> terms = new HashMap<>();
-        BufferedReader reader = new BufferedReader(new FileReader(termsFile));
-        while ((line = reader.readLine()) != null) {
-            parts = line.split(i.termDelimiter);
-            term = parts[0];
-            postings = line.replace(term + i.termDelimiter, "");
-
-            terms.put(term, postings);
-        }
-        filesRead.put(termsFile.getName(), terms);
-//        System.out.println("LOADED: " + termsfile);
-        return true;
-    }
-
     /**
-     * Workaround: .directory file delete
+     * Release the snapshot of the index; queries that are running finish on
+     * their own reference
+     *
+     * @throws IOException
      */
-    public final void clear_directoryFile() {
-        File f = new File(finalIndex + ".directory");
-        if (f.exists()) {
-            f.delete();
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            view.snapshot.decRef();
         }
     }
 
@@ -0,0 +1,39 @@
+package retrieval;
+
+/**
+ * Scoring functions of the ranked retrieval
+ *
+ * @author Fábio Ferreira
+ * @author Rui Frazão
+ */
+public enum ScoringModel {
+
+    /**
+     * lnc.ltc cosine similarity over the stored document weights
+     */
+    COSINE,
+    /**
+     * BM25 over the term frequency and the document length
+     */
+    BM25,
+    /**
+     * BM25F over the term frequency and the length of each field
+     */
+    BM25F;
+
+    /**
+     * Model with a given name, ignoring case
+     *
+     * @param name
+     * @return Scoring model
+     */
+    public static ScoringModel parse(String name) {
+        for (ScoringModel model : values()) {
+            if (model.name().equalsIgnoreCase(name.trim())) {
+                return model;
+            }
+        }
+        throw new IllegalArgumentException("Unknown scoring model: " + name + " (cosine, bm25 or bm25f)");
+    }
+
+}
@@ -0,0 +1,140 @@
+package retrieval;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded min-heap of (docid, score) keeping the k best scored documents.
+ * Documents are ranked by descending score and, on ties, by ascending docid;
+ * the root is the worst document kept. Arrays are reused between queries.
+ *
+ * @author Fábio Ferreira
+ * @author Rui Frazão
+ */
+public class TopKHeap {
+
+    private int[] docids = new int[16];
+    private double[] scores = new double[16];
+    private int size;
+    private int capacity;
+
+    /**
+     * Empty the heap and set the number of documents to keep
+     *
+     * @param k
+     */
+    public void reset(int k) {
+        this.capacity = Math.max(k, 0);
+        this.size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * Score of the worst document kept; only meaningful when the heap is full
+     *
+     * @return Minimum score
+     */
+    public double minScore() {
+        return scores[0];
+    }
+
+    /**
+     * Offer a document to the heap
+     *
+     * @param docid
+     * @param score
+     * @return true if the document was kept
+     */
+    public boolean offer(int docid, double score) {
+        if (size < capacity) {
+            if (size == docids.length) {
+                int newLength = (int) Math.min((long) capacity, 2L * docids.length);
+                docids = Arrays.copyOf(docids, newLength);
+                scores = Arrays.copyOf(scores, newLength);
+            }
+            docids[size] = docid;
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        }
+        if (capacity == 0 || !ranksBefore(docid, score, docids[0], scores[0])) {
+            return false;
+        }
+        docids[0] = docid;
+        scores[0] = score;
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * Empty the heap into a list ordered by rank
+     *
+     * @return List of (docid, score) ordered by rank
+     */
+    public List<Map.Entry<Integer, Double>> toSortedList() {
+        List<Map.Entry<Integer, Double>> ranked = new ArrayList<>(Collections.nCopies(size, (Map.Entry<Integer, Double>) null));
+        while (size > 0) {
+            ranked.set(size - 1, new AbstractMap.SimpleImmutableEntry<>(docids[0], scores[0]));
+            size--;
+            docids[0] = docids[size];
+            scores[0] = scores[size];
+            siftDown(0);
+        }
+        return ranked;
+    }
+
+    private static boolean ranksBefore(int docid1, double score1, int docid2, double score2) {
+        return score1 > score2 || (score1 == score2 && docid1 < docid2);
+    }
+
+    private void siftUp(int i) {
+        int parent;
+        while (i > 0) {
+            parent = (i - 1) >>> 1;
+            if (!ranksBefore(docids[parent], scores[parent], docids[i], scores[i])) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        int child, worst;
+        while ((child = 2 * i + 1) < size) {
+            worst = i;
+            if (ranksBefore(docids[worst], scores[worst], docids[child], scores[child])) {
+                worst = child;
+            }
+            if (child + 1 < size && ranksBefore(docids[worst], scores[worst], docids[child + 1], scores[child + 1])) {
+                worst = child + 1;
+            }
+            if (worst == i) {
+                break;
+            }
+            swap(i, worst);
+            i = worst;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int docid = docids[i];
+        double score = scores[i];
+        docids[i] = docids[j];
+        scores[i] = scores[j];
+        docids[j] = docid;
+        scores[j] = score;
+    }
+
+}
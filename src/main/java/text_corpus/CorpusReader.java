@@ -1,13 +1,15 @@
 package text_corpus;
 
-import file_handling.FileHandler;
-import java.io.BufferedReader;
+import file_handling.CompressedInput;
+import file_handling.WriterPool;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Corpus Reader
@@ -28,17 +30,16 @@ public class CorpusReader {
 //
 //    }
     
-    public void corpusReader(String filename, String outputfile, String[] columns) {
+    /**
+     * Write the selected columns of a TSV corpus as "docId TAB columns" lines
+     *
+     * @param filename
+     * @param outputfile
+     * @param columns
+     * @throws IOException - If the corpus can not be read completely
+     */
+    public void corpusReader(String filename, String outputfile, String[] columns) throws IOException {
         
-            String header[];
-            int[] headerIndexes = null;
-            BufferedReader TSVFile = null;
-            String line = "";
-            StringBuilder sb = new StringBuilder();
-            FileHandler fh = new FileHandler();
-            boolean last = false;
-            int docId = 0;
-            
             // Clear output file if it already exists
             File f = new File(outputfile);
             if(f.isFile()) {
@@ -52,63 +53,98 @@ public class CorpusReader {
                 }
             }
             
-            
-            try {
-                TSVFile = new BufferedReader(new FileReader(filename));
-            } catch (FileNotFoundException ex) {
-                System.err.println("File not found");
+        try (WriterPool writers = new WriterPool()) {
+            readDocuments(filename, columns, true, (document) -> writers.write(outputfile, document));
+        } catch (FileNotFoundException ex) {
+            System.err.println("File not found");
+        }
+    }
+
+    /**
+     * Read the selected columns of each document of a TSV file, which may be
+     * gzip compressed; documents are numbered from 1 in file order. Lines are
+     * scanned as bytes and only the selected columns are copied and decoded.
+     *
+     * @param filename
+     * @param columns
+     * @param withHeader - Also emit a "docId TAB columns" header line first
+     * @param documents
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public void readDocuments(String filename, String[] columns, boolean withHeader, DocumentConsumer documents) throws FileNotFoundException, IOException {
+        readDocuments(filename, columns, withHeader, 1, documents);
+    }
+
+    /**
+     * Read the selected columns of each document of a TSV file, numbering the
+     * documents from firstDocId, e.g. when they are added to an existing index
+     *
+     * @param filename
+     * @param columns
+     * @param withHeader - Also emit a "docId TAB columns" header line first
+     * @param firstDocId
+     * @param documents
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public void readDocuments(String filename, String[] columns, boolean withHeader, int firstDocId, DocumentConsumer documents) throws FileNotFoundException, IOException {
+        Charset charset = Charset.defaultCharset();
+        int[] headerIndexes;
+        int docId = firstDocId, nFields, maxColumn = 0;
+        byte[] out = new byte[4096];
+        int length;
+
+        try (TsvScanner tsv = new TsvScanner(CompressedInput.open(filename))) {
+            if (!tsv.nextLine()) {
                 return;
             }
-            
-            try {
-                line = TSVFile.readLine();
-                header = line.split("\t");
-                headerIndexes = selectedColumns(header, columns);
-            } catch (IOException ex) {
+            String[] header = new String(tsv.buffer(), tsv.lineStart(), tsv.lineEnd() - tsv.lineStart(), charset).split("\t");
+            headerIndexes = selectedColumns(header, columns);
+
+            if (withHeader) {
+                StringBuilder sb = new StringBuilder("docId");
+                for (int i = 0; i < columns.length; i++) {
+                    sb.append("\t").append(header[headerIndexes[i]]);
+                }
+                documents.accept(sb.toString());
             }
-           
-        try {
-            while(line != null) {
-                String[] tmp = line.split("\t");
-                String[] productTmp = new String[columns.length + 1];
-                
-                if(docId == 0)
-                    productTmp[0] = "docId";
-                else
-                    productTmp[0] = Integer.toString(docId);
-                
-                for(int i = 1; i <= columns.length; i++)
-                    productTmp[i] = tmp[headerIndexes[i-1]];
-                
-                for(int j = 0; j < productTmp.length; j++) {
-                    if(j == productTmp.length - 1)
-                        last = true;
-                    if(!last) {
-                        sb.append(productTmp[j]);
-                        sb.append("\t");
-                    }
-                    else {
-                        sb.append(productTmp[j]);
-                        last = false;
+
+            for (int index : headerIndexes) {
+                maxColumn = Math.max(maxColumn, index + 1);
+            }
+            int[] starts = new int[maxColumn], ends = new int[maxColumn];
+
+            while (tsv.nextLine()) {
+                nFields = tsv.split(starts, ends);
+
+                length = 0;
+                for (char digit : Integer.toString(docId).toCharArray()) {
+                    out[length++] = (byte) digit;
+                }
+                for (int index : headerIndexes) {
+                    int fieldLength = index < nFields ? ends[index] - starts[index] : 0;     //missing column: empty
+                    if (length + 1 + fieldLength > out.length) {
+                        out = Arrays.copyOf(out, Math.max(out.length * 2, length + 1 + fieldLength));
                     }
+                    out[length++] = '\t';
+                    System.arraycopy(tsv.buffer(), index < nFields ? starts[index] : 0, out, length, fieldLength);
+                    length += fieldLength;
                 }
-                
-                fh.write(outputfile, sb.toString());
-                sb.setLength(0);
-                
+
+                documents.accept(new String(out, 0, length, charset));
                 docId++;
-                line = TSVFile.readLine();
             }
-        } catch (IOException ex) {
         }
     }
    
     // return indexes of desired columns
     public static int[] selectedColumns(String[] header, String[] columns) {
         int[] columnsPositions = new int[columns.length];
+        Set<String> selected = new HashSet<>(Arrays.asList(columns));
         int index = 0;
-        for(int i = 0; i < header.length; i++) {
-            if(Arrays.asList(columns).contains(header[i])) {
+        for(int i = 0; i < header.length && index < columnsPositions.length; i++) {
+            if(selected.contains(header[i])) {
                 columnsPositions[index] = i;
                 index++;
             }
@@ -0,0 +1,17 @@
+package text_corpus;
+
+import java.io.IOException;
+
+/**
+ * Receives the documents of a corpus reader as "docid TAB col1 TAB ... coln"
+ * lines, in corpus order
+ *
+ * @author Fábio Ferreira
+ * @author Rui Frazão
+ */
+@FunctionalInterface
+public interface DocumentConsumer {
+
+    void accept(String document) throws IOException;
+
+}
@@ -0,0 +1,139 @@
+package text_corpus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Byte level scanner of tab separated lines. Input is read in large blocks
+ * and lines are returned as offsets into the block, so fields can be located
+ * and copied without decoding the whole line. Works with any charset where
+ * tab, CR and LF are single bytes that never occur inside other characters
+ * (UTF-8, ASCII, ISO-8859-*).
+ *
+ * @author Fábio Ferreira
+ * @author Rui Frazão
+ */
+public class TsvScanner implements Closeable {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private final InputStream in;
+    private byte[] buffer;
+    private int position = 0;
+    private int limit = 0;
+    private boolean eof = false;
+    private int lineStart;
+    private int lineEnd;
+
+    public TsvScanner(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public TsvScanner(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[Math.max(1024, bufferSize)];
+    }
+
+    /**
+     * Move to the next line; a line longer than the buffer grows it
+     *
+     * @return false at the end of the input
+     * @throws IOException
+     */
+    public boolean nextLine() throws IOException {
+        int scan = position;
+        while (true) {
+            for (; scan < limit; scan++) {
+                if (buffer[scan] == '\n') {
+                    setLine(position, scan);
+                    position = scan + 1;
+                    return true;
+                }
+            }
+            if (eof) {
+                if (position == limit) {
+                    return false;
+                }
+                setLine(position, limit);                                      //last line without line break
+                position = limit;
+                return true;
+            }
+            scan -= position;
+            fill();
+        }
+    }
+
+    private void setLine(int start, int end) {
+        if (end > start && buffer[end - 1] == '\r') {
+            end--;
+        }
+        lineStart = start;
+        lineEnd = end;
+    }
+
+    /**
+     * Keep the unread bytes at the start of the buffer and read more input
+     *
+     * @throws IOException
+     */
+    private void fill() throws IOException {
+        int remaining = limit - position;
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, remaining);
+        } else if (remaining == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        position = 0;
+        limit = remaining;
+
+        int n = in.read(buffer, limit, buffer.length - limit);
+        if (n < 0) {
+            eof = true;
+        } else {
+            limit += n;
+        }
+    }
+
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int lineStart() {
+        return lineStart;
+    }
+
+    public int lineEnd() {
+        return lineEnd;
+    }
+
+    /**
+     * Locate the first fields of the current line
+     *
+     * @param starts - Receives the offset of each field in buffer()
+     * @param ends - Receives the end offset (exclusive) of each field
+     * @return Number of fields found, at most starts.length
+     */
+    public int split(int[] starts, int[] ends) {
+        int field = 0, start = lineStart;
+        for (int i = lineStart; i < lineEnd && field < starts.length; i++) {
+            if (buffer[i] == '\t') {
+                starts[field] = start;
+                ends[field++] = i;
+                start = i + 1;
+            }
+        }
+        if (field < starts.length) {
+            starts[field] = start;
+            ends[field++] = lineEnd;
+        }
+        return field;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+}
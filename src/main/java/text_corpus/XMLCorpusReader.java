@@ -1,24 +1,57 @@
 package text_corpus;
 
-import file_handling.FileHandler;
+import file_handling.WriterPool;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import org.w3c.dom.Document;
-import org.xml.sax.SAXException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
  * XML Corpus Reader
  * 
+ * Files are parsed with a streaming (StAX) reader that only keeps the text of
+ * DOCNO and of the requested columns and stops once it has all of them. The
+ * files of a directory are parsed by a pool of threads and emitted in file
+ * name order.
+ * 
  * @author Fábio Ferreira
  * @author Rui Frazão
  */
 public class XMLCorpusReader {
 
+    private final int nThreads;
+    private final ThreadLocal<XMLInputFactory> factories = ThreadLocal.withInitial(() -> {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    });
+
+    public XMLCorpusReader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param nThreads - Number of files parsed at the same time
+     */
+    public XMLCorpusReader(int nThreads) {
+        this.nThreads = Math.max(1, nThreads);
+    }
+
     /**
      * Check if the output file already exists; in affirmative case delete it;
      * Initialize the corpus reader
@@ -26,11 +59,9 @@ public class XMLCorpusReader {
      * @param inputpath
      * @param outputfile
      * @param columns
-     * @throws ParserConfigurationException
-     * @throws SAXException
      * @throws IOException 
      */
-    public void corpusReader(String inputpath, String outputfile, String[] columns) throws ParserConfigurationException, SAXException, IOException {
+    public void corpusReader(String inputpath, String outputfile, String[] columns) throws IOException {
         File baseFile = new File(outputfile);
         if (baseFile.length() > 0) {
             baseFile.delete();
@@ -51,6 +82,9 @@ public class XMLCorpusReader {
             String name = pathname.getName().toLowerCase();
             return name.startsWith(directory) && pathname.isFile();
         });
+        if (files != null) {
+            Arrays.sort(files);
+        }
         return files;
     }
     
@@ -61,11 +95,9 @@ public class XMLCorpusReader {
      * @param inputpath
      * @param outputfile
      * @param columns
-     * @throws ParserConfigurationException
-     * @throws SAXException
      * @throws IOException 
      */
-    private void readCorpus(String inputpath, String outputfile, String[] columns) throws ParserConfigurationException, SAXException, IOException {
+    private void readCorpus(String inputpath, String outputfile, String[] columns) throws IOException {
         File old = new File(outputfile);
         if(old.isFile()) {
             PrintWriter writer;
@@ -78,49 +110,194 @@ public class XMLCorpusReader {
             }
         }
         
+        try (WriterPool writers = new WriterPool()) {
+            readDocuments(inputpath, columns, (document) -> writers.write(outputfile, document));
+        }
+    }
+
+    /**
+     * Read the corpus from one file or multiple files in a directory; each
+     * document is passed to the consumer as a "DOCNO TAB columns" line
+     *
+     * @param inputpath
+     * @param columns
+     * @param documents
+     * @throws IOException
+     */
+    public void readDocuments(String inputpath, String[] columns, DocumentConsumer documents) throws IOException {
         File path = new File(inputpath);
         
         if(path.isDirectory()) {
             inputpath = inputpath.replaceAll("\\.", "").replaceAll("/","");
             File[] files = getCorpusFiles(inputpath);
+            if (files == null) {
+                throw new FileNotFoundException(inputpath);
+            }
             
-            for (File f: files){
-                parseDocument(f, outputfile, columns);
-            }        
+            if (nThreads == 1) {
+                for (File f: files){
+                    documents.accept(parseDocument(f, columns));
+                }
+            } else {
+                parseDocuments(files, columns, documents);
+            }
         }
         else {
-            File f = new File(inputpath);
-            parseDocument(f, outputfile, columns);
+            documents.accept(parseDocument(path, columns));
+        }
+    }
+
+    /**
+     * Parse files on the worker pool; at most a few files per thread are in
+     * flight and results are emitted in the order of the files
+     * 
+     * @param files
+     * @param columns
+     * @param documents
+     * @throws IOException 
+     */
+    private void parseDocuments(File[] files, String[] columns, DocumentConsumer documents) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(nThreads);
+        Deque<Future<String>> parsed = new ArrayDeque<>();
+        int next = 0;
+
+        try {
+            while (next < files.length || !parsed.isEmpty()) {
+                while (next < files.length && parsed.size() < nThreads * 4) {
+                    File f = files[next++];
+                    parsed.add(workers.submit(() -> parseDocument(f, columns)));
+                }
+                documents.accept(parsed.poll().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Corpus reading interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            workers.shutdownNow();
         }
     }
     
     /**
-     * Parse a XML document; Get the DOCNO field and allows to choose the other columns;
-     * Write the results on outputfile
+     * Parse a XML document; Get the DOCNO field and allows to choose the other columns
      * 
      * @param file
-     * @param outputfile
      * @param columns
-     * @throws SAXException
-     * @throws IOException
-     * @throws ParserConfigurationException 
+     * @return Document line
+     * @throws IOException 
      */
-    private void parseDocument(File file, String outputfile, String[] columns) throws SAXException, IOException, ParserConfigurationException {
-        FileHandler fh = new FileHandler();
-        
-        StringBuilder sb;
-        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-        Document document = documentBuilder.parse(file);
-        sb = new StringBuilder();
-        sb.append(document.getElementsByTagName("DOCNO").item(0).getTextContent().trim()).append("\t");
-        for (String col : columns){
-            sb.append(document.getElementsByTagName(col.toUpperCase()).item(0).getTextContent().replaceAll("\\s+", " ").trim()).append("\t");
+    private String parseDocument(File file, String[] columns) throws IOException {
+        String[] tags = new String[columns.length + 1];
+        String[] values = new String[tags.length];
+        tags[0] = "DOCNO";
+        for (int c = 0; c < columns.length; c++) {
+            tags[c + 1] = columns[c].toUpperCase();
+        }
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            XMLStreamReader reader = factories.get().createXMLStreamReader(in);
+            try {
+                readTags(reader, tags, values);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid XML document " + file.getPath() + ": " + e.getMessage(), e);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(values[0] == null ? "" : values[0].trim()).append("\t");
+        for (int c = 1; c < values.length; c++) {
+            appendCollapsed(sb, values[c]);
+            sb.append("\t");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Keep the text of the first element of each tag, including the text of
+     * its children; stops reading when every tag was found
+     * 
+     * @param reader
+     * @param tags
+     * @param values
+     * @throws XMLStreamException 
+     */
+    private void readTags(XMLStreamReader reader, String[] tags, String[] values) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        int missing = tags.length, depth = 0;
+
+        while (missing > 0 && reader.hasNext()) {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            String name = reader.getLocalName();
+            for (int t = 0; t < tags.length; t++) {
+                if (values[t] != null || !tags[t].equals(name)) {
+                    continue;
+                }
+                text.setLength(0);
+                depth = 1;
+                while (depth > 0) {
+                    switch (reader.next()) {
+                        case XMLStreamConstants.START_ELEMENT:
+                            depth++;
+                            break;
+                        case XMLStreamConstants.END_ELEMENT:
+                            depth--;
+                            break;
+                        case XMLStreamConstants.CHARACTERS:
+                        case XMLStreamConstants.CDATA:
+                        case XMLStreamConstants.SPACE:
+                            text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                            break;
+                        default:
+                            break;
+                    }
+                }
+                for (int same = t; same < tags.length; same++) {            //a column may be requested twice
+                    if (values[same] == null && tags[same].equals(name)) {
+                        values[same] = text.toString();
+                        missing--;
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Append text with whitespace runs collapsed to one space and trimmed
+     * 
+     * @param sb
+     * @param text 
+     */
+    private static void appendCollapsed(StringBuilder sb, String text) {
+        if (text == null) {
+            return;
+        }
+        boolean space = false;
+        int start = sb.length();
+        char ch;
+        for (int i = 0; i < text.length(); i++) {
+            ch = text.charAt(i);
+            if (ch == ' ' || ch == '\t' || ch == '\n' || ch == '\r' || ch == '\f' || ch == '\u000B') {
+                space = true;
+            } else {
+                if (space && sb.length() > start) {
+                    sb.append(' ');
+                }
+                sb.append(ch);
+                space = false;
+            }
         }
-        fh.write(outputfile, sb.toString());
     }
     
-    /*public static void main(String[] args) throws ParserConfigurationException, SAXException, IOException {
+    /*public static void main(String[] args) throws IOException {
         XMLCorpusReader xcr = new XMLCorpusReader();
         String[] cols = new String[1];
         //cols[0] = "TITLE";
@@ -0,0 +1,134 @@
+package text_operations;
+
+import java.util.concurrent.atomic.LongAdder;
+import org.tartarus.snowball.ext.porterStemmer;
+
+/**
+ * Bounded memoization of the Porter stemmer (word -> stem), safe to share
+ * between tokenizer threads.
+ *
+ * The cache is a direct-mapped table of immutable entries: a word goes to
+ * one slot given by its hash and replaces whatever was there, so frequent
+ * words stay cached and the size never grows. Lookups work on a char range
+ * and only build a String on a miss. Each thread stems with its own
+ * stemmer, the Snowball stemmers keep state.
+ *
+ * @author Fábio Ferreira
+ * @author Rui Frazão
+ */
+public final class StemCache {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final StemCache SHARED = new StemCache(DEFAULT_CAPACITY);
+
+    private final ThreadLocal<porterStemmer> stemmers = ThreadLocal.withInitial(porterStemmer::new);
+    private final Entry[] table;
+    private final int mask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacity - Maximum number of cached words, rounded up to a power
+     * of two
+     */
+    public StemCache(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.table = new Entry[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Cache shared by every tokenizer of the JVM
+     *
+     * @return Shared stem cache
+     */
+    public static StemCache shared() {
+        return SHARED;
+    }
+
+    public String stem(String word) {
+        return stem(word.toCharArray(), 0, word.length());
+    }
+
+    /**
+     * Stem of chars[offset, offset + length)
+     *
+     * @param chars
+     * @param offset
+     * @param length
+     * @return Stem
+     */
+    public String stem(char[] chars, int offset, int length) {
+        int h = 0;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + chars[i];
+        }
+        int slot = (h ^ (h >>> 16)) & mask;
+
+        Entry entry = table[slot];
+        if (entry != null && entry.matches(chars, offset, length)) {
+            hits.increment();
+            return entry.stem;
+        }
+        misses.increment();
+
+        porterStemmer stemmer = stemmers.get();
+        stemmer.setCurrent(new String(chars, offset, length));
+        stemmer.stem();
+        String stem = stemmer.getCurrent();
+        table[slot] = new Entry(chars, offset, length, stem);
+        return stem;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRate() {
+        long h = hits.sum(), lookups = h + misses.sum();
+        return lookups == 0 ? 0 : (double) h / lookups;
+    }
+
+    public int capacity() {
+        return table.length;
+    }
+
+    @Override
+    public String toString() {
+        return "Stem cache: " + getHits() + " hits, " + getMisses() + " misses, hit rate "
+                + Math.round(getHitRate() * 1000.0) / 10.0 + "%";
+    }
+
+    private static final class Entry {
+
+        private final char[] word;
+        private final String stem;
+
+        private Entry(char[] chars, int offset, int length, String stem) {
+            this.word = new char[length];
+            System.arraycopy(chars, offset, word, 0, length);
+            this.stem = stem;
+        }
+
+        private boolean matches(char[] chars, int offset, int length) {
+            if (word.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (word[i] != chars[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+package text_operations;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable stopword set: open addressing hash table with linear probing,
+ * looked up directly on a char range so tokens need no String.
+ *
+ * Lists are loaded once per JVM and language from a Snowball style file
+ * (one word at the start of a line, comments after '|'): "stop.txt" for
+ * english, "stop_language.txt" for any other language.
+ *
+ * @author Fábio Ferreira
+ * @author Rui Frazão
+ */
+public final class StopWords {
+
+    public static final String ENGLISH = "english";
+    public static final StopWords EMPTY = new StopWords(new ArrayList<>());
+
+    private static final Map<String, StopWords> LANGUAGES = new ConcurrentHashMap<>();
+
+    private final char[][] table;
+    private final int mask;
+    private final int size;
+
+    private StopWords(Collection<String> words) {
+        int capacity = 4;
+        while (capacity < words.size() * 2) {
+            capacity <<= 1;
+        }
+        this.table = new char[capacity][];
+        this.mask = capacity - 1;
+
+        int count = 0;
+        for (String word : words) {
+            char[] chars = word.toCharArray();
+            int slot = hash(chars, 0, chars.length) & mask;
+            while (table[slot] != null && !equals(table[slot], chars, 0, chars.length)) {
+                slot = (slot + 1) & mask;
+            }
+            if (table[slot] == null) {
+                table[slot] = chars;
+                count++;
+            }
+        }
+        this.size = count;
+    }
+
+    /**
+     * Stopword set of a collection of words
+     *
+     * @param words
+     * @return Stopword set
+     */
+    public static StopWords of(Collection<String> words) {
+        return new StopWords(words);
+    }
+
+    /**
+     * Shared stopword set of a language, parsed on first use
+     *
+     * @param language
+     * @return Stopword set
+     * @throws IOException
+     */
+    public static StopWords forLanguage(String language) throws IOException {
+        String key = language.toLowerCase();
+        try {
+            return LANGUAGES.computeIfAbsent(key, (lang) -> {
+                try {
+                    return new StopWords(parse(lang.equals(ENGLISH) ? "stop.txt" : "stop_" + lang + ".txt"));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static List<String> parse(String stopWordsFile) throws IOException {
+        List<String> words = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(stopWordsFile), StandardCharsets.UTF_8))) {
+            String line, stopword;
+            int comment;
+            while ((line = br.readLine()) != null) {
+                comment = line.indexOf('|');
+                stopword = (comment < 0 ? line : line.substring(0, comment)).trim();
+                if (!stopword.isEmpty()) {
+                    words.add(stopword.split("\\s+")[0]);
+                }
+            }
+        }
+        return words;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(CharSequence word) {
+        char[] chars = new char[word.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = word.charAt(i);
+        }
+        return contains(chars, 0, chars.length);
+    }
+
+    /**
+     * Check if chars[offset, offset + length) is a stopword
+     *
+     * @param chars
+     * @param offset
+     * @param length
+     * @return true if it is a stopword
+     */
+    public boolean contains(char[] chars, int offset, int length) {
+        int slot = hash(chars, offset, length) & mask;
+        while (table[slot] != null) {
+            if (equals(table[slot], chars, offset, length)) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    private static int hash(char[] chars, int offset, int length) {
+        int h = 0;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + chars[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equals(char[] word, char[] chars, int offset, int length) {
+        if (word.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (word[i] != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
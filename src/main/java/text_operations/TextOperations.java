@@ -1,10 +1,9 @@
 package text_operations;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import org.tartarus.snowball.ext.porterStemmer;
+import java.util.Arrays;
+import java.util.function.Consumer;
 
 /**
  * Text operations executed on tokenizers
@@ -16,22 +15,42 @@ public class TextOperations {
 
     public TextOperations(boolean useStopWordFilter) throws IOException {
         if (useStopWordFilter) {
-            parseStopWords();
+            this.stopWords = StopWords.forLanguage(StopWords.ENGLISH);
         }
     }
 
+    /**
+     * Filter the stopwords of a language
+     *
+     * @param language
+     * @throws IOException
+     */
+    public TextOperations(String language) throws IOException {
+        this.stopWords = StopWords.forLanguage(language);
+    }
+
     public TextOperations() {
     }
 
-    private final String stopWordsFile = "stop.txt";
-    private final porterStemmer stemmer = new porterStemmer();
-    private ArrayList<String> stopWords = new ArrayList<>();
+    public static final int MIN_TERM_LENGTH = 3, MAX_TERM_LENGTH = 24;
+
+    private StemCache stemCache = StemCache.shared();
+    private StopWords stopWords = StopWords.EMPTY;
     private ArrayList<Character> escapeChars = new ArrayList<>();
+    private char[] token = new char[32];
 
     public void setStopWords(ArrayList<String> stopWords) {
+        this.stopWords = StopWords.of(stopWords);
+    }
+
+    public void setStopWords(StopWords stopWords) {
         this.stopWords = stopWords;
     }
 
+    public void setStemCache(StemCache stemCache) {
+        this.stemCache = stemCache;
+    }
+
     public void setRelevantChars(ArrayList<Character> relevantChars) {
         this.escapeChars = relevantChars;
     }
@@ -80,28 +99,9 @@ public class TextOperations {
         return sb.append("[").append(regexBase).append(re_append).append("]").append(re_spaces_append).toString();
     }
 
-    private void parseStopWords() throws IOException {
-        ArrayList<String> stopWordsList = new ArrayList<>();
-        BufferedReader br = new BufferedReader(new FileReader(stopWordsFile));
-
-        String line = br.readLine();
-        String stopword;
-
-        while (line != null) {
-            stopword = line.split(" | ")[0].trim();
-            if (!stopword.isEmpty() && !stopword.contains("|")) {                 //CORRIGIR PARSE POR |
-                stopWordsList.add(stopword);
-            }
-            line = br.readLine();
-        }
-
-        setStopWords(stopWordsList);
-    }
-
     public String stopwordRemover(String line) throws IOException {
         StringBuilder sb = new StringBuilder();
         String[] lineParse = line.split("\\s+");
-//        parseStopWords();
         for (String word : lineParse) {
             if (!stopWords.contains(word)) {
                 sb.append(word).append(" ");
@@ -110,13 +110,73 @@ public class TextOperations {
         return sb.toString();
     }
 
+    /**
+     * Single pass tokenization: lowercase, keep a-z (and digits), drop
+     * stopwords, stem and keep terms of MIN_TERM_LENGTH to MAX_TERM_LENGTH
+     * characters. Same terms as the removeAlphanumeric, stopwordRemover,
+     * stemming, removeShortHugeWords chain, without the intermediate lines.
+     *
+     * @param text
+     * @param start - Index of the first character to tokenize
+     * @param keepDigits
+     * @param terms - Receives each term in text order
+     */
+    public void tokenize(CharSequence text, int start, boolean keepDigits, Consumer<String> terms) {
+        tokenize(text, start, text.length(), keepDigits, terms);
+    }
+
+    /**
+     * Tokenize text[start, end)
+     *
+     * @param text
+     * @param start - Index of the first character to tokenize
+     * @param end - Index after the last character to tokenize
+     * @param keepDigits
+     * @param terms - Receives each term in text order
+     */
+    public void tokenize(CharSequence text, int start, int end, boolean keepDigits, Consumer<String> terms) {
+        int length = 0;
+        char ch;
+        for (int i = start, n = end; i <= n; i++) {
+            ch = i < n ? Character.toLowerCase(text.charAt(i)) : ' ';
+            if ((ch >= 'a' && ch <= 'z') || (keepDigits && ch >= '0' && ch <= '9')
+                    || (!escapeChars.isEmpty() && escapeChars.contains(ch))) {
+                if (length == token.length) {
+                    token = Arrays.copyOf(token, length * 2);
+                }
+                token[length++] = ch;
+            } else if (length > 0) {
+                emitTerm(length, terms);
+                length = 0;
+            }
+        }
+    }
+
+    private void emitTerm(int length, Consumer<String> terms) {
+        int begin = 0;
+        while (length > begin && escapeChars.contains(token[length - 1])) {       //special chars only inside terms
+            length--;
+        }
+        while (begin < length && escapeChars.contains(token[begin])) {
+            begin++;
+        }
+        if (length - begin < MIN_TERM_LENGTH) {                                  //stems are never longer than the word
+            return;
+        }
+        if (stopWords.contains(token, begin, length - begin)) {
+            return;
+        }
+        String term = stemCache.stem(token, begin, length - begin);
+        if (term.length() >= MIN_TERM_LENGTH && term.length() <= MAX_TERM_LENGTH) {
+            terms.accept(term);
+        }
+    }
+
     public String stemming(String line) {
         StringBuilder sb = new StringBuilder();
         String[] lineParse = line.split("\\s+");
         for (String word : lineParse) {
-            stemmer.setCurrent(word);
-            stemmer.stem();
-            sb.append(stemmer.getCurrent()).append(" ");
+            sb.append(stemCache.stem(word)).append(" ");
         }
         return sb.toString();
     }
@@ -1,15 +1,14 @@
 package tokenizer;
 
-import file_handling.FileHandler;
-import file_handling.MemoryManager;
+import file_handling.WriterPool;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.UncheckedIOException;
+import java.util.function.Consumer;
 import text_operations.TextOperations;
 
 /**
@@ -21,7 +20,13 @@ import text_operations.TextOperations;
  */
 public class ImprovedTokenizer {
 
-    private final double threshold = 70;
+    private final ThreadLocal<TextOperations> operations = ThreadLocal.withInitial(() -> {
+        try {
+            return new TextOperations(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    });
 
     public ImprovedTokenizer() {
 
@@ -39,12 +44,8 @@ public class ImprovedTokenizer {
      * @throws IOException
      */
     public boolean improvedTokenization(String source_path, String output_path, boolean escapeDigits, boolean isFirstLineHeader) throws FileNotFoundException, IOException {
-        FileHandler fh = new FileHandler();
-        MemoryManager mm = new MemoryManager();
         TextOperations to = new TextOperations(true);
 
-        List<String> arrayBuffer = new ArrayList<>();
-
         BufferedReader br = new BufferedReader(new FileReader(source_path));
         
         File old = new File(output_path);
@@ -57,43 +58,30 @@ public class ImprovedTokenizer {
             } catch (FileNotFoundException ex) {}
         }
 
-        String customRegex = to.buildCustomRegex(escapeDigits);
+        StringBuilder sb = new StringBuilder();
+        Consumer<String> terms = (term) -> sb.append(term).append(' ');
 
-        try {
+        try (WriterPool writers = new WriterPool()) {
             String line = br.readLine();
 
             if (isFirstLineHeader) {
                 line = br.readLine();
             }
 
-            String docid;
+            int tab;
             while (line != null) {
 
-                docid = line.substring(0, line.indexOf("\t"));
-                line = line.replace(docid, " ").toLowerCase();
-                line = to.removeAlphanumeric(line, customRegex);
-                line = to.stopwordRemover(line);
-                line = to.stemming(line);
-                line = to.removeShortHugeWords(line);
-                line = to.removeWhitespaces(line);
+                tab = line.indexOf('\t');
+                sb.setLength(0);
+                sb.append(line, 0, tab + 1);
+                appendFields(sb, line, tab + 1, escapeDigits, to, terms);
 
-//                System.out.println(docid+"\t"+line);
-//                fh.write(output_path, docid + "\t" + line);
-                arrayBuffer.add(docid + "\t" + line);
-
-                if (mm.getMemoryUsage() >= threshold) {
-                    arrayBuffer.forEach(s -> fh.write(output_path, s));
-                    arrayBuffer.clear();
-                    System.gc();
-                }
+//                System.out.println(sb);
+                writers.write(output_path, sb.toString());
 
                 line = br.readLine();
             }
 
-            arrayBuffer.forEach(s -> fh.write(output_path, s));
-            arrayBuffer.clear();
-            System.gc();
-
         } finally {
             br.close();
         }
@@ -102,7 +90,63 @@ public class ImprovedTokenizer {
     }
 
     /**
-     * Apply improved tokenization to query for ranked retrieval
+     * Apply improved tokenization to a "docid TAB text" corpus line; safe to
+     * call from several threads, each thread reuses its own TextOperations
+     *
+     * @param document
+     * @param escapeDigits
+     * @return "docid TAB terms" line
+     * @throws IOException
+     */
+    public String documentTokenization(String document, boolean escapeDigits) throws IOException {
+        int tab = document.indexOf('\t');
+        StringBuilder sb = new StringBuilder(document.length());
+        sb.append(document, 0, tab + 1);
+        appendFields(sb, document, tab + 1, escapeDigits, getOperations(), (term) -> sb.append(term).append(' '));
+        return sb.toString();
+    }
+
+    /**
+     * Append the terms of each tab separated column of line[start, end of
+     * line); the terms of a column are separated by spaces and the columns by
+     * tabs, so the indexer can tell the fields apart. Trailing empty columns
+     * are dropped.
+     *
+     * @param sb
+     * @param line
+     * @param start
+     * @param escapeDigits
+     * @param to
+     * @param terms - Appends a term and a space to sb
+     */
+    private static void appendFields(StringBuilder sb, String line, int start, boolean escapeDigits, TextOperations to, Consumer<String> terms) {
+        int first = sb.length(), end, fieldStart;
+        while (true) {
+            end = line.indexOf('\t', start);
+            if (end < 0) {
+                end = line.length();
+            }
+            fieldStart = sb.length();
+            to.tokenize(line, start, end, escapeDigits, terms);
+            if (sb.length() > fieldStart) {
+                sb.setLength(sb.length() - 1);                                  //trailing space
+            }
+            if (end == line.length()) {
+                break;
+            }
+            sb.append('\t');
+            start = end + 1;
+        }
+        int length = sb.length();
+        while (length > first && sb.charAt(length - 1) == '\t') {
+            length--;
+        }
+        sb.setLength(length);
+    }
+
+    /**
+     * Apply improved tokenization to query for ranked retrieval; safe to call
+     * from several threads, each thread reuses its own TextOperations
      *
      * @param query
      * @param escapeDigits
@@ -110,19 +154,22 @@ public class ImprovedTokenizer {
      * @throws IOException
      */
     public String queryTokenization(String query, boolean escapeDigits) throws IOException {
-        TextOperations to = new TextOperations(true);
-
-        String customRegex = to.buildCustomRegex(escapeDigits);
+        StringBuilder sb = new StringBuilder();
+        getOperations().tokenize(query, 0, escapeDigits, (term) -> sb.append(term).append(' '));
+        if (sb.length() > 0) {
+            sb.setLength(sb.length() - 1);
+        }
 
-        query = query.toLowerCase();
-        query = to.removeAlphanumeric(query, customRegex);
-        query = to.stopwordRemover(query);
-        query = to.stemming(query);
-        query = to.removeShortHugeWords(query);
-        query = to.removeWhitespaces(query);
+//        System.out.println(sb);
+        return sb.toString();
+    }
 
-//        System.out.println(query);
-        return query;
+    private TextOperations getOperations() throws IOException {
+        try {
+            return operations.get();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
 }
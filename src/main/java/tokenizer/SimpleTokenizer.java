@@ -5,7 +5,7 @@
  */
 package tokenizer;
 
-import file_handling.FileHandler;
+import file_handling.WriterPool;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -23,7 +23,6 @@ import text_operations.TextOperations;
 public class SimpleTokenizer {
 
     public void simpleTokenization(String source_path, String output_path, boolean isFirstLineHeader) throws FileNotFoundException, IOException {
-        FileHandler fh = new FileHandler();
         TextOperations to = new TextOperations();
 
         BufferedReader br = new BufferedReader(new FileReader(source_path));
@@ -38,7 +37,7 @@ public class SimpleTokenizer {
             } catch (FileNotFoundException ex) {}
         }
 
-        try {
+        try (WriterPool writers = new WriterPool()) {
             String line = br.readLine();
 
             if (isFirstLineHeader) {
@@ -53,7 +52,7 @@ public class SimpleTokenizer {
                 line = to.removeWhitespaces(to.removeShortHugeWords(to.removeAlphanumeric(line.replace(docid, ""))));
 
 //                System.out.println(docid+"\t"+line);
-                fh.write(output_path, docid + "\t" + line);
+                writers.write(output_path, docid + "\t" + line);
                 line = br.readLine();
             }
 
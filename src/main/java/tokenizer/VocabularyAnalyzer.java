@@ -30,6 +30,7 @@ public class VocabularyAnalyzer {
                 int word_counter, docid;
                 while (line != null) {
                     docid = Integer.parseInt(line.split("\t")[0]);
+                    line = line.substring(0, line.indexOf('\t') + 1) + line.substring(line.indexOf('\t') + 1).replace('\t', ' ');  //one field per column
                     words = line.replaceAll("\\d[\\s]{2,}", "").split(" ");
                     for(String word: words){
                         docid_frequence = new HashMap<>();